@@ -0,0 +1,220 @@
+package advice;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+
+
+/**
+ * Асинхронные методы под @OnceThreadByDocument и цена очереди {@link DocumentLock}.
+ * <ul>
+ * <li>async: SAVES вызовов {@link DocumentNewAdvice} асинхронного save одного документа из одного потока,
+ * save завершается через SAVE_MILLIS в отдельном потоке. Печатается время постановки вызовов, общее время,
+ * максимум одновременно выполняемых save (должен быть 1) и число живых потоков</li>
+ * <li>hot: HOT_THREADS потоков захватывают документ (70% - один горячий документ) и держат его HOT_SPINS
+ * итераций. {@link DocumentLockManager} против прежней схемы на честной ReentrantReadWriteLock JDK
+ * (без учета зависших держателей), в обоих режимах</li>
+ * </ul>
+ */
+public final class AsyncLockBench {
+
+    static final int SAVES = 500;
+    static final long SAVE_MILLIS = 2;
+    static final long LOCK_TIMEOUT_MILLIS = 5000;
+    static final int HOT_THREADS = 8;
+    static final int HOT_SPINS = 200;
+    static final long HOT_MILLIS = 2000;
+
+    private static final ScheduledExecutorService io = Executors.newSingleThreadScheduledExecutor();
+    private static final AtomicInteger inside = new AtomicInteger();
+    private static final LongAccumulator maxInside = new LongAccumulator(Math::max, 0);
+
+    private AsyncLockBench() {
+    }
+
+    @OnceThreadByDocument(name = "documentId")
+    public CompletableFuture<String> save(long documentId, int number) {
+        maxInside.accumulate(inside.incrementAndGet());
+        CompletableFuture<String> result = new CompletableFuture<>();
+        io.schedule(() -> {
+            inside.decrementAndGet();
+            result.complete("saved " + number);
+        }, SAVE_MILLIS, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    public static void main(String[] args) throws Throwable {
+        try {
+            runAsync();
+        } finally {
+            io.shutdown();
+        }
+        for (int round = 0; round < 2; round++) {
+            for (OnceThreadByDocument.Mode mode : OnceThreadByDocument.Mode.values()) {
+                DocumentLockManager lockManager = new DocumentLockManager();
+                runHot("DocumentLockManager", mode, new Locks() {
+                    @Override
+                    public boolean lock(long documentId, OnceThreadByDocument.Mode mode) throws InterruptedException {
+                        return lockManager.lock(documentId, mode, LOCK_TIMEOUT_MILLIS);
+                    }
+
+                    @Override
+                    public void unlock(long documentId, OnceThreadByDocument.Mode mode) {
+                        lockManager.unlock(documentId, mode);
+                    }
+                });
+                runHot("JdkLocks", mode, new JdkLocks());
+            }
+        }
+    }
+
+    private static void runAsync() throws Throwable {
+        DocumentNewAdvice advice = BenchAdvice.advice(LOCK_TIMEOUT_MILLIS);
+        try {
+            AsyncLockBench target = new AsyncLockBench();
+            Method method = AsyncLockBench.class.getMethod("save", long.class, int.class);
+            OnceThreadByDocument onceThreadByDocument = method.getAnnotation(OnceThreadByDocument.class);
+            List<CompletableFuture<?>> results = new ArrayList<>(SAVES);
+            long start = System.nanoTime();
+            for (int i = 0; i < SAVES; i++) {
+                ProceedingJoinPoint joinPoint =
+                        BenchAdvice.joinPoint(target, method, new String[]{"documentId", "number"}, 7L, i);
+                results.add((CompletableFuture<?>) advice.lock(joinPoint, onceThreadByDocument));
+            }
+            long submitted = System.nanoTime() - start;
+            int saved = 0;
+            int failed = 0;
+            for (CompletableFuture<?> result : results) {
+                try {
+                    result.join();
+                    saved++;
+                } catch (CompletionException e) {
+                    failed++;
+                }
+            }
+            System.out.printf("async saves=%d submit ms=%d total ms=%d saved=%d failed=%d max inside=%d threads=%d%n",
+                    SAVES, TimeUnit.NANOSECONDS.toMillis(submitted),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), saved, failed, maxInside.get(),
+                    Thread.activeCount());
+        } finally {
+            advice.destroy();
+        }
+    }
+
+    private interface Locks {
+        boolean lock(long documentId, OnceThreadByDocument.Mode mode) throws InterruptedException;
+
+        void unlock(long documentId, OnceThreadByDocument.Mode mode);
+    }
+
+    private static void runHot(String name, OnceThreadByDocument.Mode mode, Locks locks) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        LongAccumulator maxWait = new LongAccumulator(Math::max, 0);
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread[] threads = new Thread[HOT_THREADS];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (!stop.get()) {
+                        long documentId = random.nextInt(10) < 7 ? 42 : 1000 + random.nextInt(500);
+                        long start = System.nanoTime();
+                        if (!locks.lock(documentId, mode)) {
+                            continue;
+                        }
+                        maxWait.accumulate(System.nanoTime() - start);
+                        try {
+                            spin(random);
+                        } finally {
+                            locks.unlock(documentId, mode);
+                        }
+                        operations.increment();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[t].start();
+        }
+        Thread.sleep(HOT_MILLIS);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.printf("hot %s %s ops/s=%d max wait ms=%d%n", name, mode,
+                operations.sum() * 1000 / HOT_MILLIS, TimeUnit.NANOSECONDS.toMillis(maxWait.get()));
+    }
+
+    private static int spin(ThreadLocalRandom random) {
+        int sum = 0;
+        for (int k = 0; k < HOT_SPINS; k++) {
+            sum += random.nextInt();
+        }
+        return sum;
+    }
+
+    /*
+     * Прежняя схема DocumentLockManager: запись на документ с честной ReentrantReadWriteLock и счетчиком
+     * держателей и ожидающих, удаляется последним
+     */
+    private static final class JdkLocks implements Locks {
+
+        private static final class Entry {
+            private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+            private int users;
+        }
+
+        private final ConcurrentMap<Long, Entry> entries = new ConcurrentHashMap<>();
+
+        @Override
+        public boolean lock(long documentId, OnceThreadByDocument.Mode mode) throws InterruptedException {
+            Entry entry = entries.compute(documentId, (id, current) -> {
+                Entry result = current == null ? new Entry() : current;
+                result.users++;
+                return result;
+            });
+            Lock lock = lockOf(entry, mode);
+            boolean locked = false;
+            try {
+                locked = lock.tryLock(0, TimeUnit.MILLISECONDS)
+                        || lock.tryLock(LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } finally {
+                if (!locked) {
+                    leave(documentId);
+                }
+            }
+            return locked;
+        }
+
+        @Override
+        public void unlock(long documentId, OnceThreadByDocument.Mode mode) {
+            lockOf(entries.get(documentId), mode).unlock();
+            leave(documentId);
+        }
+
+        private void leave(long documentId) {
+            entries.computeIfPresent(documentId, (id, entry) -> --entry.users == 0 ? null : entry);
+        }
+
+        private static Lock lockOf(Entry entry, OnceThreadByDocument.Mode mode) {
+            return mode == OnceThreadByDocument.Mode.SHARED ? entry.lock.readLock() : entry.lock.writeLock();
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package advice;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+
+
+/**
+ * Вызов {@link DocumentNewAdvice} из стендов без Spring и AspectJ
+ */
+final class BenchAdvice {
+
+    private BenchAdvice() {
+    }
+
+    /**
+     * Совет с таймаутом блокировки lockTimeoutMillis (document.lock.timeout), после {@link DocumentNewAdvice#init}.
+     * Остановка - {@link DocumentNewAdvice#destroy}
+     */
+    static DocumentNewAdvice advice(long lockTimeoutMillis) throws ReflectiveOperationException {
+        DocumentNewAdvice advice = new DocumentNewAdvice();
+        Field timeout = DocumentNewAdvice.class.getDeclaredField("configLockTimeout");
+        timeout.setAccessible(true);
+        timeout.set(advice, lockTimeoutMillis);
+        advice.init();
+        return advice;
+    }
+
+    /**
+     * Точка вызова без AspectJ: прокси ProceedingJoinPoint и MethodSignature с методами, которые вызывает совет
+     */
+    static ProceedingJoinPoint joinPoint(Object target, Method method, String[] parameterNames, Object... args) {
+        MethodSignature signature = (MethodSignature) Proxy.newProxyInstance(BenchAdvice.class.getClassLoader(),
+                new Class<?>[]{MethodSignature.class}, (proxy, called, callArgs) -> {
+                    switch (called.getName()) {
+                        case "getMethod":
+                            return method;
+                        case "getParameterNames":
+                            return parameterNames;
+                        case "getReturnType":
+                            return method.getReturnType();
+                        case "getParameterTypes":
+                            return method.getParameterTypes();
+                        case "getDeclaringType":
+                            return method.getDeclaringClass();
+                        case "getName":
+                        case "toShortString":
+                        case "toString":
+                            return method.getName();
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == callArgs[0];
+                        default:
+                            throw new UnsupportedOperationException(called.getName());
+                    }
+                });
+        return (ProceedingJoinPoint) Proxy.newProxyInstance(BenchAdvice.class.getClassLoader(),
+                new Class<?>[]{ProceedingJoinPoint.class}, (proxy, called, callArgs) -> {
+                    switch (called.getName()) {
+                        case "proceed":
+                            try {
+                                return method.invoke(target, callArgs == null ? args : (Object[]) callArgs[0]);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        case "getSignature":
+                            return signature;
+                        case "getArgs":
+                            return args.clone();
+                        case "getTarget":
+                        case "getThis":
+                            return target;
+                        case "toString":
+                            return method.getName();
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == callArgs[0];
+                        default:
+                            throw new UnsupportedOperationException(called.getName());
+                    }
+                });
+    }
+
+}
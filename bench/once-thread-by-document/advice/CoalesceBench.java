@@ -0,0 +1,105 @@
+package advice;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Объединение записей документа (coalesce): THREADS потоков одновременно делают по CALLS сохранений
+ * одного документа через {@link DocumentNewAdvice}, сохранение длится SAVE_MILLIS. Обычный save
+ * против save с coalesce = true. Печатаются вызовы в секунду, число выполнений метода, отказы,
+ * p50 и p99 времени вызова и вызовы, получившие результат старше своего payload.
+ */
+public final class CoalesceBench {
+
+    static final int THREADS = 32;
+    static final int CALLS = 20;
+    static final long SAVE_MILLIS = 5;
+    static final long LOCK_TIMEOUT_MILLIS = 1200;
+
+    private static final AtomicInteger executions = new AtomicInteger();
+
+    private CoalesceBench() {
+    }
+
+    @OnceThreadByDocument(name = "documentId")
+    public int save(long documentId, int payload) throws InterruptedException {
+        executions.incrementAndGet();
+        Thread.sleep(SAVE_MILLIS);
+        return payload;
+    }
+
+    @OnceThreadByDocument(name = "documentId", coalesce = true)
+    public int saveCoalesced(long documentId, int payload) throws InterruptedException {
+        return save(documentId, payload);
+    }
+
+    public static void main(String[] args) throws Exception {
+        DocumentNewAdvice advice = BenchAdvice.advice(LOCK_TIMEOUT_MILLIS);
+        try {
+            for (int round = 0; round < 2; round++) {
+                run(advice, "save");
+                run(advice, "saveCoalesced");
+            }
+        } finally {
+            advice.destroy();
+        }
+    }
+
+    private static void run(DocumentNewAdvice advice, String name) throws Exception {
+        CoalesceBench target = new CoalesceBench();
+        Method method = CoalesceBench.class.getMethod(name, long.class, int.class);
+        OnceThreadByDocument onceThreadByDocument = method.getAnnotation(OnceThreadByDocument.class);
+        String[] parameterNames = {"documentId", "payload"};
+        executions.set(0);
+        long[] latencies = new long[THREADS * CALLS];
+        AtomicInteger index = new AtomicInteger();
+        AtomicInteger sequence = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger older = new AtomicInteger();
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < CALLS; i++) {
+                    int payload = sequence.incrementAndGet();
+                    long start = System.nanoTime();
+                    try {
+                        int saved = (Integer) advice.lock(
+                                BenchAdvice.joinPoint(target, method, parameterNames, 99L, payload),
+                                onceThreadByDocument);
+                        if (saved < payload) {
+                            older.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        failed.incrementAndGet();
+                    }
+                    latencies[index.getAndIncrement()] = System.nanoTime() - start;
+                }
+            });
+            threads[t].start();
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long wall = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        System.out.printf("%s calls=%d wall ms=%d calls/s=%d executions=%d failed=%d p50 ms=%.1f p99 ms=%.1f"
+                        + " returned older=%d%n",
+                name, latencies.length, TimeUnit.NANOSECONDS.toMillis(wall),
+                latencies.length * TimeUnit.SECONDS.toNanos(1) / wall, executions.get(), failed.get(),
+                latencies[latencies.length / 2] / 1e6, latencies[(int) (latencies.length * 0.99)] / 1e6,
+                older.get());
+    }
+
+}
@@ -0,0 +1,67 @@
+package advice;
+
+import java.lang.reflect.Method;
+
+import ru.systemres.vsrf.lk.dto.document.DocumentBase;
+
+
+/**
+ * Извлечение id документа из аргументов метода с четырьмя параметрами: прежний алгоритм DocumentNewAdvice
+ * (поиск параметра по имени на каждый вызов, id через toString/parseLong) против закешированного
+ * {@link DocumentIdExtractor}. Печатается время на вызов.
+ * Аргументы: [вызовов в раунде], по умолчанию 20000000.
+ */
+public final class ExtractorBench {
+
+    private static final String[] PARAMETER_NAMES = {"name", "force", "documentId", "userId"};
+
+    private ExtractorBench() {
+    }
+
+    @OnceThreadByDocument(name = "documentId")
+    public void remove(String name, boolean force, long documentId, long userId) {
+    }
+
+    public static void main(String[] args) throws NoSuchMethodException {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 20000000;
+        Method method = ExtractorBench.class.getMethod("remove", String.class, boolean.class, long.class, long.class);
+        String name = method.getAnnotation(OnceThreadByDocument.class).name()[0];
+        Object[][] arguments = new Object[1024][];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = new Object[]{"name", true, 100000L + i, 5L};
+        }
+        for (int round = 0; round < 5; round++) {
+            long sum = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                sum += oldExtract(PARAMETER_NAMES, arguments[i & 1023], name);
+            }
+            long middle = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                DocumentIdExtractor.Single extractor =
+                        (DocumentIdExtractor.Single) DocumentIdExtractor.of(method, PARAMETER_NAMES);
+                sum += extractor.extract(arguments[i & 1023]);
+            }
+            long end = System.nanoTime();
+            System.out.printf("old ns/call=%.1f cached ns/call=%.1f checksum=%d%n",
+                    (middle - start) / (double) calls, (end - middle) / (double) calls, sum);
+        }
+    }
+
+    /*
+     * Прежний алгоритм DocumentNewAdvice
+     */
+    private static long oldExtract(String[] parameterNames, Object[] args, String name) {
+        for (int i = 0; i < parameterNames.length; i++) {
+            if (parameterNames[i].equals(name)) {
+                if (args[i] instanceof Long) {
+                    return Long.parseLong(args[i].toString());
+                } else if (args[i] instanceof DocumentBase) {
+                    return ((DocumentBase) args[i]).getId();
+                }
+            }
+        }
+        throw new IllegalArgumentException("Parameter not found [" + name + "]");
+    }
+
+}
@@ -0,0 +1,108 @@
+package advice;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Захват нескольких документов за вызов: {@link DocumentLockManager#lockAll} в порядке id против вложенных
+ * захватов в порядке аргументов (как при вложенных вызовах методов с @OnceThreadByDocument).
+ * THREADS потоков делают по CALLS вызовов, каждый берет три случайных документа из documents.
+ * Прогон ограничен LIMIT_SECONDS: вложенные захваты на малом числе документов взаимно блокируются
+ * до таймаута и иначе идут минутами. Печатаются время, успешные вызовы, таймауты и незавершенные вызовы.
+ * Аргументы: [документов...], по умолчанию 10 100.
+ */
+public final class LockAllBench {
+
+    private static final OnceThreadByDocument.Mode EXCLUSIVE = OnceThreadByDocument.Mode.EXCLUSIVE;
+
+    static final int THREADS = 8;
+    static final int CALLS = 5000;
+    static final int DOCUMENTS_PER_CALL = 3;
+    static final long TIMEOUT_MILLIS = 200;
+    static final long LIMIT_SECONDS = 60;
+
+    private LockAllBench() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] documentCounts = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{10, 100};
+        for (int documents : documentCounts) {
+            run(true, documents);
+            run(false, documents);
+        }
+    }
+
+    private static void run(boolean ordered, int documents) throws InterruptedException {
+        DocumentLockManager lockManager = new DocumentLockManager();
+        AtomicInteger locked = new AtomicInteger();
+        AtomicInteger timeouts = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        long start = System.nanoTime();
+        long limit = start + TimeUnit.SECONDS.toNanos(LIMIT_SECONDS);
+        for (int t = 0; t < THREADS; t++) {
+            executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < CALLS && System.nanoTime() < limit; i++) {
+                    long[] ids = new long[DOCUMENTS_PER_CALL];
+                    for (int k = 0; k < ids.length; k++) {
+                        ids[k] = 1 + random.nextInt(documents);
+                    }
+                    boolean acquired = ordered
+                            ? lockOrdered(lockManager, ids)
+                            : lockNested(lockManager, ids);
+                    (acquired ? locked : timeouts).incrementAndGet();
+                }
+                return null;
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(LIMIT_SECONDS + 10, TimeUnit.SECONDS);
+        int unfinished = THREADS * CALLS - locked.get() - timeouts.get();
+        System.out.printf("%s documents=%d ms=%d locked=%d timeouts=%d unfinished=%d left=%d%n",
+                ordered ? "lockAll" : "nested", documents, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                locked.get(), timeouts.get(), unfinished, lockManager.size());
+    }
+
+    private static boolean lockOrdered(DocumentLockManager lockManager, long[] documentIds)
+            throws InterruptedException {
+        long[] ids = Arrays.stream(documentIds).sorted().distinct().toArray();
+        if (lockManager.lockAll(ids, EXCLUSIVE, TIMEOUT_MILLIS) >= 0) {
+            return false;
+        }
+        try {
+            Thread.yield();
+        } finally {
+            lockManager.unlockAll(ids, EXCLUSIVE);
+        }
+        return true;
+    }
+
+    /*
+     * Вложенные захваты в порядке аргументов, повторный захват того же документа реентерабелен
+     */
+    private static boolean lockNested(DocumentLockManager lockManager, long[] ids) throws InterruptedException {
+        int locked = 0;
+        try {
+            for (long id : ids) {
+                if (!lockManager.lock(id, EXCLUSIVE, TIMEOUT_MILLIS)) {
+                    return false;
+                }
+                locked++;
+            }
+            Thread.yield();
+            return true;
+        } finally {
+            for (int k = locked - 1; k >= 0; k--) {
+                lockManager.unlock(ids[k], EXCLUSIVE);
+            }
+        }
+    }
+
+}
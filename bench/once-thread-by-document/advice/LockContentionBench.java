@@ -0,0 +1,164 @@
+package advice;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Конкуренция за документ: прежний алгоритм DocumentNewAdvice (своя ReentrantLock в Map, повторные попытки)
+ * против {@link DocumentLockManager}. Потоки захватывают случайный документ из docs, держат его
+ * holdNanos (активное ожидание) и отпускают. Печатаются захваты в секунду, отказы, максимальное
+ * и p99 (по выборке) ожидание захвата.
+ * Аргументы: [потоков] [удержание, нс] [документов], по умолчанию 8 100000 1.
+ * В описании изменения: 8 100000 1 и 16 10000 1.
+ */
+public final class LockContentionBench {
+
+    private static final long DURATION_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private LockContentionBench() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long holdNanos = args.length > 1 ? Long.parseLong(args[1]) : 100000;
+        int documents = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        for (int round = 0; round < 2; round++) {
+            run(new RetryLocks(4, 300), threads, holdNanos, documents);
+            run(new ManagerLocks(new DocumentLockManager(), 1200), threads, holdNanos, documents);
+        }
+    }
+
+    private interface Locks {
+        boolean lock(long documentId) throws InterruptedException;
+
+        void unlock(long documentId);
+    }
+
+    private static void run(Locks locks, int threadCount, long holdNanos, int documents) throws InterruptedException {
+        AtomicLong locked = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        LongAccumulator maxWait = new LongAccumulator(Math::max, 0);
+        ConcurrentLinkedQueue<Long> waits = new ConcurrentLinkedQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        long end = System.nanoTime() + DURATION_NANOS;
+        for (int t = 0; t < threadCount; t++) {
+            executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < end) {
+                    long documentId = 1 + random.nextInt(documents);
+                    long start = System.nanoTime();
+                    if (!locks.lock(documentId)) {
+                        failed.incrementAndGet();
+                        continue;
+                    }
+                    long wait = System.nanoTime() - start;
+                    maxWait.accumulate(wait);
+                    if (random.nextInt(64) == 0) {
+                        waits.add(wait);
+                    }
+                    try {
+                        spin(holdNanos);
+                    } finally {
+                        locks.unlock(documentId);
+                    }
+                    locked.incrementAndGet();
+                }
+                return null;
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        long[] sample = waits.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sample);
+        long p99 = sample.length == 0 ? 0 : sample[(int) (sample.length * 0.99)];
+        System.out.printf("%s threads=%d hold us=%d documents=%d locks/s=%d failed=%d max wait ms=%.1f p99 wait us=%d%n",
+                locks.getClass().getSimpleName(), threadCount, holdNanos / 1000, documents,
+                locked.get() * 1000000000L / DURATION_NANOS, failed.get(), maxWait.get() / 1e6, p99 / 1000);
+    }
+
+    private static void spin(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            // активное ожидание: работа под блокировкой без освобождения процессора
+        }
+    }
+
+    private static final class ManagerLocks implements Locks {
+        private final DocumentLockManager lockManager;
+        private final long timeoutMillis;
+
+        private ManagerLocks(DocumentLockManager lockManager, long timeoutMillis) {
+            this.lockManager = lockManager;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public boolean lock(long documentId) throws InterruptedException {
+            return lockManager.lock(documentId, OnceThreadByDocument.Mode.EXCLUSIVE, timeoutMillis);
+        }
+
+        @Override
+        public void unlock(long documentId) {
+            lockManager.unlock(documentId, OnceThreadByDocument.Mode.EXCLUSIVE);
+        }
+    }
+
+    /*
+     * Прежний алгоритм DocumentNewAdvice без логирования: tryCount попыток по tryTimeout мс
+     */
+    private static final class RetryLocks implements Locks {
+        private final Map<Long, ReentrantLock> lockMap = new ConcurrentHashMap<>();
+        private final int tryCount;
+        private final long tryTimeout;
+
+        private RetryLocks(int tryCount, long tryTimeout) {
+            this.tryCount = tryCount;
+            this.tryTimeout = tryTimeout;
+        }
+
+        @Override
+        public boolean lock(long documentId) throws InterruptedException {
+            return tryPutLock(null, documentId);
+        }
+
+        @Override
+        public void unlock(long documentId) {
+            lockMap.remove(documentId).unlock();
+        }
+
+        private boolean tryPutLock(ReentrantLock currentLock, long documentId) throws InterruptedException {
+            ReentrantLock ownLock = new ReentrantLock();
+            ownLock.lock();
+            ReentrantLock anotherLock = lockMap.putIfAbsent(documentId, ownLock);
+            if (currentLock != null) {
+                currentLock.unlock();
+            }
+            if (anotherLock != null) {
+                ownLock.unlock();
+                return tryLock(anotherLock, 0, documentId);
+            }
+            return true;
+        }
+
+        private boolean tryLock(ReentrantLock currentLock, int tries, long documentId) throws InterruptedException {
+            if (tries >= tryCount) {
+                return false;
+            }
+            if (currentLock.tryLock(tryTimeout, TimeUnit.MILLISECONDS)) {
+                return tryPutLock(currentLock, documentId);
+            }
+            return tryLock(currentLock, tries + 1, documentId);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package advice;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Режимы {@link OnceThreadByDocument.Mode} на одном документе: потоки читают (writePercent процентов - пишут)
+ * и держат блокировку holdNanos (поток паркуется, как при обращении к базе). Сравниваются все захваты EXCLUSIVE
+ * и чтения SHARED. Печатаются чтения и записи в секунду и отказы по таймауту.
+ * Аргументы: [потоков] [удержание, нс] [процент записей], по умолчанию 16 200000 5.
+ */
+public final class SharedLockBench {
+
+    private static final long DURATION_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long TIMEOUT_MILLIS = 1200;
+
+    private SharedLockBench() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        long holdNanos = args.length > 1 ? Long.parseLong(args[1]) : 200000;
+        int writePercent = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        for (int round = 0; round < 2; round++) {
+            run(false, threads, holdNanos, writePercent);
+            run(true, threads, holdNanos, writePercent);
+        }
+    }
+
+    private static void run(boolean shared, int threadCount, long holdNanos, int writePercent)
+            throws InterruptedException {
+        DocumentLockManager lockManager = new DocumentLockManager();
+        AtomicLong reads = new AtomicLong();
+        AtomicLong writes = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        long end = System.nanoTime() + DURATION_NANOS;
+        for (int t = 0; t < threadCount; t++) {
+            executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < end) {
+                    boolean write = random.nextInt(100) < writePercent;
+                    OnceThreadByDocument.Mode mode = write || !shared
+                            ? OnceThreadByDocument.Mode.EXCLUSIVE
+                            : OnceThreadByDocument.Mode.SHARED;
+                    if (!lockManager.lock(1, mode, TIMEOUT_MILLIS)) {
+                        failed.incrementAndGet();
+                        continue;
+                    }
+                    try {
+                        LockSupport.parkNanos(holdNanos);
+                    } finally {
+                        lockManager.unlock(1, mode);
+                    }
+                    (write ? writes : reads).incrementAndGet();
+                }
+                return null;
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(DURATION_NANOS);
+        System.out.printf("%s threads=%d hold us=%d writes %%=%d reads/s=%d writes/s=%d failed=%d%n",
+                shared ? "shared reads" : "all exclusive", threadCount, holdNanos / 1000, writePercent,
+                reads.get() / seconds, writes.get() / seconds, failed.get());
+    }
+
+}
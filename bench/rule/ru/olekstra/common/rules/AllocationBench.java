@@ -0,0 +1,61 @@
+package ru.olekstra.common.rules;
+
+import java.lang.management.ManagementFactory;
+
+import org.joda.time.DateTime;
+
+
+/*
+ * Аллокации на операциях LocalRuleEventStore, байт на операцию текущего потока
+ * (com.sun.management.ThreadMXBean, HotSpot). Списочный режим и режим скользящего окна:
+ * eventAdd, tryReleaseBlock заблокированного IP, sweep.
+ * Первый проход прогревает JIT, печатается второй.
+ */
+public final class AllocationBench {
+
+    private AllocationBench() {
+    }
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (boolean slidingWindow : new boolean[]{false, true}) {
+            LocalRuleEventStore store = new LocalRuleEventStore(slidingWindow);
+            BenchRule rule = new BenchRule("rule", 60000, 50, 100, 10, 60000);
+            IpAddress[] ips = new IpAddress[1000];
+            for (int i = 0; i < ips.length; i++) {
+                ips[i] = IpAddress.ofIpv4(i);
+            }
+            BlockItem blockItem = new BlockItem();
+            blockItem.setExpireTime(new DateTime(System.currentTimeMillis() + 3600000));
+            blockItem.setRuleName(rule.getName());
+            for (int i = 0; i < 100; i++) {
+                store.block(ips[i], blockItem);
+            }
+            int operations = slidingWindow ? 2000000 : 100000;
+            int sweeps = 2000;
+            for (int pass = 0; pass < 2; pass++) {
+                long start = threads.getThreadAllocatedBytes(threadId);
+                for (int i = 0; i < operations; i++) {
+                    store.eventAdd(ips[i % ips.length], rule);
+                }
+                long added = threads.getThreadAllocatedBytes(threadId);
+                for (int i = 0; i < operations; i++) {
+                    store.tryReleaseBlock(ips[i % 100]);
+                }
+                long released = threads.getThreadAllocatedBytes(threadId);
+                for (int i = 0; i < sweeps; i++) {
+                    store.sweep(1000);
+                }
+                long swept = threads.getThreadAllocatedBytes(threadId);
+                if (pass == 1) {
+                    System.out.printf("window=%s eventAdd B/op=%.1f tryReleaseBlock(blocked) B/op=%.1f sweep B/call=%.1f%n",
+                            slidingWindow, (added - start) / (double) operations,
+                            (released - added) / (double) operations, (swept - released) / (double) sweeps);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package ru.olekstra.common.rules;
+
+
+/*
+ * Правило с фиксированными параметрами для стендов
+ */
+public class BenchRule implements OlekstraRule {
+
+    private final String name;
+    private final long eventLifeMillis;
+    private final Integer limitToSleep;
+    private final Integer limitToBlock;
+    private final long sleepMillis;
+    private final long blockMillis;
+
+    public BenchRule(String name, long eventLifeMillis, Integer limitToSleep, Integer limitToBlock,
+                     long sleepMillis, long blockMillis) {
+        this.name = name;
+        this.eventLifeMillis = eventLifeMillis;
+        this.limitToSleep = limitToSleep;
+        this.limitToBlock = limitToBlock;
+        this.sleepMillis = sleepMillis;
+        this.blockMillis = blockMillis;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getEventLifeMillis() {
+        return eventLifeMillis;
+    }
+
+    @Override
+    public String getReasonDescription() {
+        return name;
+    }
+
+    @Override
+    public String getReason() {
+        return name;
+    }
+
+    @Override
+    public Integer getLimitToSleep() {
+        return limitToSleep;
+    }
+
+    @Override
+    public Integer getLimitToBlock() {
+        return limitToBlock;
+    }
+
+    @Override
+    public long getSleepMillis() {
+        return sleepMillis;
+    }
+
+    @Override
+    public long getBlockMillis() {
+        return blockMillis;
+    }
+
+}
@@ -0,0 +1,65 @@
+package ru.olekstra.common.rules;
+
+import org.joda.time.DateTime;
+
+
+/*
+ * Пропускная способность tryReleaseBlock для незаблокированных IP (основной путь isBlocked)
+ * при 1, 8 и 32 потоках. В хранилище 1000 заблокированных адресов, потоки спрашивают про другие.
+ * Масштабирование видно только на машине с несколькими ядрами.
+ * Аргументы: [длительность прогона, мс]
+ */
+public final class BlockedLookupBench {
+
+    private static final int BATCH = 1000;
+
+    private BlockedLookupBench() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long durationMillis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        LocalRuleEventStore store = new LocalRuleEventStore(false);
+        for (int i = 0; i < 1000; i++) {
+            BlockItem blockItem = new BlockItem();
+            blockItem.setRuleName("rule");
+            blockItem.setExpireTime(new DateTime(System.currentTimeMillis() + 600000));
+            store.block(IpAddress.ofIpv4(i), blockItem);
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int threads : new int[]{1, 8, 32}) {
+                run(store, threads, durationMillis);
+            }
+        }
+    }
+
+    private static void run(LocalRuleEventStore store, int threadCount, long durationMillis)
+            throws InterruptedException {
+        Thread[] threads = new Thread[threadCount];
+        long[] counts = new long[threadCount];
+        long end = System.nanoTime() + durationMillis * 1000000;
+        for (int t = 0; t < threadCount; t++) {
+            int index = t;
+            threads[t] = new Thread(() -> {
+                IpAddress ip = IpAddress.ofIpv4(100000 + index);
+                long count = 0;
+                while (System.nanoTime() < end) {
+                    for (int i = 0; i < BATCH; i++) {
+                        if (store.tryReleaseBlock(ip) != BlockedIpState.UNBLOCKED) {
+                            throw new IllegalStateException("Not blocked ip reported as blocked " + ip);
+                        }
+                    }
+                    count += BATCH;
+                }
+                counts[index] = count;
+            });
+            threads[t].start();
+        }
+        long total = 0;
+        for (int t = 0; t < threadCount; t++) {
+            threads[t].join();
+            total += counts[t];
+        }
+        System.out.println("threads=" + threadCount + " ops/s=" + total * 1000 / durationMillis);
+    }
+
+}
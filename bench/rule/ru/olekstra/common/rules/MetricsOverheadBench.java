@@ -0,0 +1,61 @@
+package ru.olekstra.common.rules;
+
+
+/*
+ * Цена RuleMetrics на пути isBlocked для незаблокированного IP (без блокировки сегмента), один поток.
+ * Тот же путь, что в RuleService.isBlocked: tryReleaseBlock + isPrefixBlocked, варианты -
+ * без метрик (как до их появления), с rule.metrics.latency=false и с замером задержки.
+ * Аргументы: [операций в прогоне]
+ */
+public final class MetricsOverheadBench {
+
+    private MetricsOverheadBench() {
+    }
+
+    public static void main(String[] args) {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 20000000;
+        LocalRuleEventStore store = new LocalRuleEventStore();
+        IpAddress[] ips = new IpAddress[1024];
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = IpAddress.ofIpv4(0x0a000000 + i);
+        }
+        RuleMetrics counters = new RuleMetrics(false);
+        RuleMetrics latency = new RuleMetrics(true);
+        long blocked = 0;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                blocked += isBlocked(store, ips[i & 1023]) ? 1 : 0;
+            }
+            long plain = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                blocked += isBlocked(store, counters, ips[i & 1023]) ? 1 : 0;
+            }
+            long withCounters = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                blocked += isBlocked(store, latency, ips[i & 1023]) ? 1 : 0;
+            }
+            long withLatency = System.nanoTime();
+            System.out.printf("no metrics %.1f ns/op, latency off %.1f ns/op, latency on %.1f ns/op%n",
+                    (plain - start) / (double) operations,
+                    (withCounters - plain) / (double) operations,
+                    (withLatency - withCounters) / (double) operations);
+        }
+        if (blocked != 0) {
+            throw new IllegalStateException("Not blocked ip reported as blocked");
+        }
+        System.out.println(latency.snapshot(store, store.getLockWait()).getIsBlockedLatency());
+    }
+
+    private static boolean isBlocked(LocalRuleEventStore store, IpAddress ip) {
+        return store.tryReleaseBlock(ip) == BlockedIpState.BLOCKED || store.isPrefixBlocked(ip);
+    }
+
+    private static boolean isBlocked(LocalRuleEventStore store, RuleMetrics metrics, IpAddress ip) {
+        long start = metrics.start();
+        boolean blocked = isBlocked(store, ip);
+        metrics.isBlockedFinished(start);
+        return blocked;
+    }
+
+}
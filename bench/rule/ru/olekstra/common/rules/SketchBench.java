@@ -0,0 +1,81 @@
+package ru.olekstra.common.rules;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+
+/*
+ * Точность режима SketchRuleEventStore при распределенной атаке.
+ * 10M событий: фон из 5M случайных адресов и 50 тяжелых адресов, которые появляются только
+ * во второй половине (1% событий), лимиты правила 20/40. Тяжелый адрес считается пойманным,
+ * если хранилище вернуло количество выше лимита блокировки, ложное срабатывание - то же для фонового адреса.
+ * Отдельно проверяется, что тяжелый ключ не вытесняется из SpaceSavingTopK потоком новых ключей.
+ * Аргументы: [ширина sketch...], по умолчанию 16384 65536 262144
+ */
+public final class SketchBench {
+
+    private static final int EVENTS = 10000000;
+    private static final int BACKGROUND = 5000000;
+    private static final int HEAVY = 50;
+
+    private SketchBench() {
+    }
+
+    public static void main(String[] args) {
+        checkTopKKeepsHeavyKey();
+        int[] widths = args.length > 0 ? new int[args.length] : new int[]{16384, 65536, 262144};
+        for (int i = 0; i < args.length; i++) {
+            widths[i] = Integer.parseInt(args[i]);
+        }
+        for (int width : widths) {
+            run(width);
+        }
+    }
+
+    private static void run(int width) {
+        LocalRuleEventStore local = new LocalRuleEventStore(true);
+        SketchRuleEventStore store = new SketchRuleEventStore(local, 4, width, 1000, 0.5);
+        BenchRule rule = new BenchRule("rule", 600000, 20, 40, 10, 60000);
+        Random random = new Random(1);
+        Set<Integer> heavyBlocked = new HashSet<>();
+        int falsePositives = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < EVENTS; i++) {
+            boolean heavy = i > EVENTS / 2 && random.nextInt(100) == 0;
+            int ip = heavy ? random.nextInt(HEAVY) : 1000 + random.nextInt(BACKGROUND);
+            if (store.eventAdd(IpAddress.ofIpv4(ip), rule) > rule.getLimitToBlock()) {
+                if (heavy) {
+                    heavyBlocked.add(ip);
+                } else {
+                    falsePositives++;
+                }
+            }
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        System.out.println("width=" + width + " ms=" + millis
+                + " exact entries=" + local.getRuleEventsCount()
+                + " heavy blocked=" + heavyBlocked.size() + "/" + HEAVY
+                + " false positives=" + falsePositives
+                + " heap MB=" + (runtime.totalMemory() - runtime.freeMemory()) / 1048576);
+    }
+
+    private static void checkTopKKeepsHeavyKey() {
+        SpaceSavingTopK topK = new SpaceSavingTopK(4);
+        for (int i = 0; i < 1000; i++) {
+            topK.offer(1, 0, 7);
+        }
+        for (int i = 0; i < 100; i++) {
+            topK.offer(1, 0, 100 + i);
+        }
+        for (SpaceSavingTopK.Counter counter : topK.snapshot()) {
+            if (counter.getIp().equals(new IpAddress(0, 7))) {
+                return;
+            }
+        }
+        throw new IllegalStateException("Heavy key evicted from SpaceSavingTopK");
+    }
+
+}
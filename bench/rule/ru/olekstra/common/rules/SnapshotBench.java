@@ -0,0 +1,72 @@
+package ru.olekstra.common.rules;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.joda.time.DateTime;
+
+
+/*
+ * Размер и время записи/загрузки снимка LocalRuleEventStore.
+ * 200 000 IP с событиями правила, каждый десятый заблокирован (половина блокировок уже истекла,
+ * при загрузке они отбрасываются) и одна заблокированная подсеть. Снимок списочного режима
+ * загружается в хранилище скользящего окна и наоборот.
+ * Аргументы: [количество IP]
+ */
+public final class SnapshotBench {
+
+    private SnapshotBench() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        BenchRule rule = new BenchRule("rule", 60000, 2, 3, 10, 60000);
+        Path file = Files.createTempFile("rule-snapshot", ".bin");
+        try {
+            for (int round = 0; round < 3; round++) {
+                for (boolean slidingWindow : new boolean[]{false, true}) {
+                    run(file, slidingWindow, entries, rule);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void run(Path file, boolean slidingWindow, int entries, BenchRule rule) throws IOException {
+        LocalRuleEventStore store = new LocalRuleEventStore(slidingWindow, new SubnetBlockRule(2, 1000, 24, 64));
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < entries; i++) {
+            IpAddress ip = IpAddress.ofIpv4(i * 7);
+            store.eventAdd(ip, rule);
+            if (i % 10 == 0) {
+                BlockItem blockItem = new BlockItem();
+                blockItem.setRuleName(rule.getName());
+                blockItem.setExpireTime(new DateTime(now + (i % 20 == 0 ? -5 : 60000)));
+                store.block(ip, blockItem);
+            }
+        }
+        BlockItem prefixBlock = new BlockItem();
+        prefixBlock.setRuleName("subnet");
+        prefixBlock.setExpireTime(new DateTime(now + 300000));
+        store.blockPrefix(IpPrefix.parse("10.0.0.0/8"), prefixBlock);
+
+        long start = System.nanoTime();
+        store.writeSnapshot(file);
+        long written = System.nanoTime();
+        LocalRuleEventStore loaded = new LocalRuleEventStore(!slidingWindow);
+        int count = loaded.loadSnapshot(file);
+        long end = System.nanoTime();
+
+        System.out.println("window=" + slidingWindow
+                + " write ms=" + (written - start) / 1000000
+                + " load ms=" + (end - written) / 1000000
+                + " bytes=" + Files.size(file)
+                + " loaded=" + count
+                + " blocked=" + loaded.getBlockedIpCount()
+                + " events=" + loaded.getRuleEventsCount()
+                + " prefix blocked=" + loaded.isPrefixBlocked(IpAddress.parse("10.2.3.4")));
+    }
+
+}
@@ -0,0 +1,37 @@
+package ru.olekstra.common.service;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import ru.olekstra.common.rules.BenchRule;
+import ru.olekstra.common.rules.OlekstraRule;
+
+
+/*
+ * Скорость и память RuleReplay на синтетическом журнале: 20 000 обычных клиентов, 5 сканеров
+ * и ботнет из 2000 адресов в четырех /24, 10 минут времени журнала, одно правило 10/30 с блокировкой
+ * на 10 минут. Прогон в списочном режиме и в режиме скользящего окна.
+ */
+public final class ReplayBench {
+
+    private static final long DURATION_MILLIS = 600000;
+
+    private ReplayBench() {
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        Map<String, OlekstraRule> rules = Collections.<String, OlekstraRule>singletonMap("rule",
+                new BenchRule("rule", 60000, 10, 30, 10, 600000));
+        for (boolean slidingWindow : new boolean[]{false, true}) {
+            Iterator<ReplayRecord> records = ReplayTraffic.mix(
+                    ReplayTraffic.normal(1, 20000, 0, DURATION_MILLIS, "rule"),
+                    ReplayTraffic.scanner(2, 5, 0, DURATION_MILLIS, "rule"),
+                    ReplayTraffic.botnet(3, 2000, 4, 0, DURATION_MILLIS, "rule"));
+            RuleReplay.Report report = new RuleReplay(rules, slidingWindow, false, 1000).run(records);
+            System.out.println("window=" + slidingWindow + " " + report);
+        }
+    }
+
+}
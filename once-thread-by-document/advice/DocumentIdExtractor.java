@@ -0,0 +1,252 @@
+package advice;
+
+import ru.systemres.vsrf.lk.dto.document.DocumentBase;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Получение documentId из аргументов метода с {@link OnceThreadByDocument}.
+ * Индекс аргумента и способ получения id определяются один раз на метод и кэшируются,
+ * на каждом вызове остается только чтение аргумента по индексу.
+ * Ошибки в аннотации (нет аргумента с таким именем, неподходящий тип) обнаруживаются при разборе метода,
+ * {@link OnceThreadByDocumentValidator} разбирает методы всех бинов при старте приложения.
+ * Один аргумент с id документа разбирается в {@link Single},
+ * несколько имен в аннотации или аргумент-коллекция - в {@link Multiple}.
+ */
+interface DocumentIdExtractor {
+
+    ConcurrentMap<Method, DocumentIdExtractor> CACHE = new ConcurrentHashMap<>();
+
+    long[] NO_IDS = new long[0];
+
+    /**
+     * id всех документов вызова по возрастанию, без повторов и без 0 (новые документы)
+     */
+    long[] extractAll(Object[] args);
+
+    /**
+     * id одного документа, без аллокации массива на вызове. 0 - новый документ
+     */
+    @FunctionalInterface
+    interface Single extends DocumentIdExtractor {
+
+        long extract(Object[] args);
+
+        @Override
+        default long[] extractAll(Object[] args) {
+            long id = extract(args);
+            return id == 0 ? NO_IDS : new long[]{id};
+        }
+    }
+
+    /**
+     * @param parameterNames имена аргументов метода, используются только при первом обращении
+     */
+    static DocumentIdExtractor of(Method method, String[] parameterNames) {
+        DocumentIdExtractor extractor = CACHE.get(method);
+        if (extractor == null) {
+            extractor = CACHE.computeIfAbsent(method, key -> compile(key, parameterNames));
+        }
+        return extractor;
+    }
+
+    static DocumentIdExtractor compile(Method method, String[] parameterNames) {
+        OnceThreadByDocument onceThreadByDocument = method.getAnnotation(OnceThreadByDocument.class);
+        if (onceThreadByDocument == null) {
+            throw new IllegalStateException("Method is not annotated with @OnceThreadByDocument [" + method + "]");
+        }
+        if (onceThreadByDocument.maxHoldMillis() < 0) {
+            throw new IllegalStateException("Negative maxHoldMillis. method [" + method + "]");
+        }
+        if (parameterNames == null) {
+            throw new IllegalStateException("Parameter names are not available. method [" + method + "]");
+        }
+        String[] names = onceThreadByDocument.name();
+        if (names.length == 0) {
+            throw new IllegalStateException("No documentId argument names. method [" + method + "]");
+        }
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Type[] genericTypes = method.getGenericParameterTypes();
+        int[] indexes = new int[names.length];
+        boolean multiple = names.length > 1;
+        for (int n = 0; n < names.length; n++) {
+            indexes[n] = indexOf(method, parameterNames, names[n]);
+            Class<?> type = parameterTypes[indexes[n]];
+            if (Collection.class.isAssignableFrom(type) || type.isArray()) {
+                checkElementType(method, names[n], type, genericTypes[indexes[n]]);
+                multiple = true;
+            } else {
+                compile(method, names[n], indexes[n], type);
+            }
+        }
+        Class<?> returnType = method.getReturnType();
+        boolean async = CompletionStage.class.isAssignableFrom(returnType);
+        if (async && !returnType.isAssignableFrom(CompletableFuture.class)) {
+            throw new IllegalStateException("Async method must return CompletableFuture or CompletionStage, found ["
+                    + returnType.getName() + "]. method [" + method + "]");
+        }
+        if (onceThreadByDocument.coalesce() && (multiple || async
+                || onceThreadByDocument.mode() != OnceThreadByDocument.Mode.EXCLUSIVE)) {
+            throw new IllegalStateException("coalesce is supported for synchronous EXCLUSIVE methods of a single"
+                    + " document only. method [" + method + "]");
+        }
+        if (multiple) {
+            if (async) {
+                throw new IllegalStateException("Async methods are supported for a single document only. method ["
+                        + method + "]");
+            }
+            for (Class<?> type : parameterTypes) {
+                if (type == FencingToken.class) {
+                    throw new IllegalStateException("FencingToken is supported for a single document only. method ["
+                            + method + "]");
+                }
+            }
+            return new Multiple(indexes);
+        }
+        return compile(method, names[0], indexes[0], parameterTypes[indexes[0]]);
+    }
+
+    static int indexOf(Method method, String[] parameterNames, String name) {
+        for (int i = 0; i < parameterNames.length; i++) {
+            if (parameterNames[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("DocumentId argument [" + name + "] not found. method [" + method + "]");
+    }
+
+    /*
+     * Элементы коллекции или массива: long, Long или DocumentBase
+     */
+    static void checkElementType(Method method, String name, Class<?> type, Type genericType) {
+        Type element = null;
+        if (type.isArray()) {
+            element = type.getComponentType();
+        } else if (genericType instanceof ParameterizedType) {
+            element = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+            if (element instanceof WildcardType) {
+                element = ((WildcardType) element).getUpperBounds()[0];
+            }
+        }
+        if (element == long.class || element == Long.class
+                || element instanceof Class && DocumentBase.class.isAssignableFrom((Class<?>) element)) {
+            return;
+        }
+        throw new IllegalStateException("DocumentId argument [" + name + "] must be a collection or array of long, Long"
+                + " or DocumentBase, found [" + genericType.getTypeName() + "]. method [" + method + "]");
+    }
+
+    static Single compile(Method method, String name, int index, Class<?> type) {
+        if (type == long.class) {
+            return args -> (Long) args[index];
+        }
+        if (type == Long.class) {
+            return args -> {
+                Long id = (Long) args[index];
+                if (id == null) {
+                    throw new RuntimeException("DocumentId not found from method signature");
+                }
+                return id;
+            };
+        }
+        if (DocumentBase.class.isAssignableFrom(type)) {
+            return args -> {
+                DocumentBase document = (DocumentBase) args[index];
+                if (document == null) {
+                    throw new RuntimeException("DocumentId not found from method signature");
+                }
+                return document.getId();
+            };
+        }
+        if (type.isAssignableFrom(Long.class) || type.isAssignableFrom(DocumentBase.class)) {
+            // объявлен общий тип (Object, Number), тип значения проверяется на каждом вызове
+            return args -> {
+                Object arg = args[index];
+                if (arg instanceof Long) {
+                    return (Long) arg;
+                } else if (arg instanceof DocumentBase) {
+                    return ((DocumentBase) arg).getId();
+                }
+                throw new RuntimeException("DocumentId not found from method signature");
+            };
+        }
+        throw new IllegalStateException("DocumentId argument [" + name + "] must be long, Long or DocumentBase, found ["
+                + type.getName() + "]. method [" + method + "]");
+    }
+
+    /**
+     * id из нескольких аргументов и коллекций. Типы проверены при разборе метода,
+     * на вызове значения разбираются по фактическому классу
+     */
+    final class Multiple implements DocumentIdExtractor {
+
+        private final int[] indexes;
+
+        private Multiple(int[] indexes) {
+            this.indexes = indexes;
+        }
+
+        @Override
+        public long[] extractAll(Object[] args) {
+            long[] ids = new long[8];
+            int size = 0;
+            for (int index : indexes) {
+                Object arg = args[index];
+                if (arg == null) {
+                    throw new RuntimeException("DocumentId not found from method signature");
+                }
+                if (arg instanceof Collection) {
+                    for (Object element : (Collection<?>) arg) {
+                        ids = add(ids, size++, idOf(element));
+                    }
+                } else if (arg instanceof long[]) {
+                    for (long id : (long[]) arg) {
+                        ids = add(ids, size++, id);
+                    }
+                } else if (arg instanceof Object[]) {
+                    for (Object element : (Object[]) arg) {
+                        ids = add(ids, size++, idOf(element));
+                    }
+                } else {
+                    ids = add(ids, size++, idOf(arg));
+                }
+            }
+            Arrays.sort(ids, 0, size);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (ids[i] != 0 && (unique == 0 || ids[unique - 1] != ids[i])) {
+                    ids[unique++] = ids[i];
+                }
+            }
+            return unique == 0 ? NO_IDS : Arrays.copyOf(ids, unique);
+        }
+
+        private static long[] add(long[] ids, int size, long id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size] = id;
+            return ids;
+        }
+
+        private static long idOf(Object value) {
+            if (value instanceof Long) {
+                return (Long) value;
+            } else if (value instanceof DocumentBase) {
+                return ((DocumentBase) value).getId();
+            }
+            throw new RuntimeException("DocumentId not found from method signature");
+        }
+    }
+
+}
@@ -0,0 +1,377 @@
+package advice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Аренда документов этим узлом кластера в {@link DocumentLeaseStore}.
+ * Потоки одного узла сначала проходят локальную {@link DocumentLockManager}, сюда приходит не больше
+ * одного потока на документ (или несколько SHARED). Аренда, которая уже у узла, выдается без обращения
+ * к хранилищу, после освобождения узел держит ее еще lingerMillis - повторные вызовы
+ * по документу, с которым работает только этот узел, обходятся без сетевых запросов.
+ * Чтобы поток локальных вызовов не оставлял другие узлы без аренды, свободная аренда, которую узел держит
+ * дольше leaseMillis, возвращается в хранилище и разыгрывается заново.
+ * Фоновый поток продлевает аренды раз в треть срока и отпускает неиспользуемые.
+ * Внутри compute карты held только меняется состояние записи, обращения к хранилищу - вне карты.
+ * Возвращаемая в хранилище аренда остается в карте с отметкой {@link Held#released} до конца запроса:
+ * локальный захват того же документа ждет ее, иначе отложенный release удалил бы аренду,
+ * которую только что получил (тем же токеном) новый вызов.
+ */
+public class DocumentLeaseManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DocumentLeaseManager.class);
+
+    private static final long MIN_BACKOFF_MILLIS = 5;
+    private static final long MAX_BACKOFF_MILLIS = 100;
+
+    // Результаты acquireHeld, кроме токена
+    private static final long NOT_HELD = 0;
+    private static final long HANDED_OVER = -1;
+    private static final long RELEASING = -2;
+
+    private static final class Held {
+        private final long token;
+        private final long acquireTime;
+        // изменяются только внутри compute карты held
+        private int users;
+        private long lingerUntil;
+        // не null - аренда возвращается в хранилище, завершается после удаления записи из карты
+        private volatile CompletableFuture<Void> released;
+
+        private Held(long token, long acquireTime) {
+            this.token = token;
+            this.acquireTime = acquireTime;
+        }
+    }
+
+    private final String nodeId;
+    private final DocumentLeaseStore store;
+    private final long leaseMillis;
+    private final long lingerMillis;
+    private final ConcurrentMap<Long, Held> held = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    // ожидания acquireAsync, завершаются при остановке
+    private final Set<CompletableFuture<Long>> pending = ConcurrentHashMap.newKeySet();
+
+    public DocumentLeaseManager(String nodeId, DocumentLeaseStore store, long leaseMillis, long lingerMillis) {
+        this.nodeId = nodeId;
+        this.store = store;
+        this.leaseMillis = leaseMillis;
+        this.lingerMillis = lingerMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "document-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        long period = Math.max(1, leaseMillis / 3);
+        scheduler.scheduleWithFixedDelay(this::maintain, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        for (CompletableFuture<Long> waiting : pending) {
+            waiting.complete(0L);
+        }
+        for (Map.Entry<Long, Held> entry : held.entrySet()) {
+            Held lease = entry.getValue();
+            if (lease.released == null) {
+                store.release(entry.getKey(), nodeId, lease.token);
+            }
+        }
+        held.clear();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Получение аренды документа, ожидание освобождения другим узлом не дольше timeoutMillis
+     *
+     * @return fencing token, 0 - не дождались
+     */
+    public long acquire(long documentId, long timeoutMillis) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long deadline = start + timeoutMillis;
+        long token;
+        while ((token = acquireHeld(documentId, System.currentTimeMillis())) == RELEASING) {
+            if (!awaitReleased(documentId, deadline)) {
+                return 0;
+            }
+        }
+        if (token > 0) {
+            return token;
+        }
+        if (token == HANDED_OVER) {
+            // даем ожидающим узлам шанс получить аренду
+            Thread.sleep(MIN_BACKOFF_MILLIS);
+        }
+
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (true) {
+            token = acquireStored(documentId);
+            if (token > 0) {
+                return token;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return 0;
+            }
+            Thread.sleep(Math.min(backoff, remaining));
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * Получение аренды без ожидания потоком: первая попытка в текущем потоке, повторные - в executor
+     * через паузы, которые отсчитывает фоновый поток менеджера. После {@link #stop} ожидания завершаются 0
+     *
+     * @return fencing token, 0 - не дождались за timeoutMillis
+     */
+    public CompletableFuture<Long> acquireAsync(long documentId, long timeoutMillis, Executor executor) {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        pending.add(result);
+        result.whenComplete((value, error) -> pending.remove(result));
+        try {
+            ScheduledFuture<?> timeout = scheduler.schedule(() -> result.complete(0L),
+                    timeoutMillis, TimeUnit.MILLISECONDS);
+            result.whenComplete((value, error) -> timeout.cancel(false));
+        } catch (RejectedExecutionException e) {
+            result.complete(0L);
+            return result;
+        }
+        attemptAsync(documentId, MIN_BACKOFF_MILLIS, executor, result);
+        return result;
+    }
+
+    /*
+     * Попытка асинхронного захвата. Повторы прекращаются, когда result завершен таймаутом или остановкой
+     */
+    private void attemptAsync(long documentId, long backoff, Executor executor, CompletableFuture<Long> result) {
+        if (result.isDone()) {
+            return;
+        }
+        long token;
+        try {
+            token = acquireHeld(documentId, System.currentTimeMillis());
+            if (token == RELEASING) {
+                CompletableFuture<Void> released = releasedOf(documentId);
+                if (released == null) {
+                    attemptAsync(documentId, backoff, executor, result);
+                } else {
+                    released.whenComplete((value, error) ->
+                            resumeAsync(executor, () -> attemptAsync(documentId, backoff, executor, result), result));
+                }
+                return;
+            }
+            if (token == NOT_HELD) {
+                token = acquireStored(documentId);
+            }
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        if (token > 0) {
+            if (!result.complete(token)) {
+                // не дождались или менеджер остановлен, пока шел запрос
+                release(documentId, token);
+            }
+            return;
+        }
+        // аренда у другого узла или только что возвращена в хранилище
+        long delay = token == HANDED_OVER ? MIN_BACKOFF_MILLIS : backoff;
+        long nextBackoff = token == HANDED_OVER ? MIN_BACKOFF_MILLIS : Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        try {
+            scheduler.schedule(
+                    () -> resumeAsync(executor, () -> attemptAsync(documentId, nextBackoff, executor, result), result),
+                    delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            result.complete(0L);
+        }
+    }
+
+    private static void resumeAsync(Executor executor, Runnable attempt, CompletableFuture<Long> result) {
+        try {
+            executor.execute(attempt);
+        } catch (RejectedExecutionException e) {
+            result.complete(0L);
+        }
+    }
+
+    /*
+     * Аренда, которая уже у узла.
+     * Возвращает токен; NOT_HELD - аренды у узла нет; HANDED_OVER - аренда возвращена в хранилище
+     * после leaseMillis, перед попыткой нужна пауза; RELEASING - аренда возвращается другим потоком, см. releasedOf
+     */
+    private long acquireHeld(long documentId, long now) {
+        boolean[] handOver = new boolean[1];
+        Held current = held.computeIfPresent(documentId, (id, lease) -> {
+            if (lease.released != null) {
+                return lease;
+            }
+            if (lease.users == 0 && now - lease.acquireTime >= leaseMillis) {
+                lease.released = new CompletableFuture<>();
+                handOver[0] = true;
+                return lease;
+            }
+            lease.users++;
+            lease.lingerUntil = 0;
+            return lease;
+        });
+        if (current == null) {
+            return NOT_HELD;
+        }
+        if (handOver[0]) {
+            releaseStored(documentId, current);
+            return HANDED_OVER;
+        }
+        return current.released != null ? RELEASING : current.token;
+    }
+
+    // Ожидание возврата аренды в хранилище, null - уже возвращена
+    private CompletableFuture<Void> releasedOf(long documentId) {
+        Held lease = held.get(documentId);
+        return lease == null ? null : lease.released;
+    }
+
+    private boolean awaitReleased(long documentId, long deadline) throws InterruptedException {
+        CompletableFuture<Void> released = releasedOf(documentId);
+        if (released == null) {
+            return true;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            return false;
+        }
+        try {
+            released.get(remaining, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            // released завершается только нормально
+            return true;
+        }
+    }
+
+    // Попытка получить аренду в хранилище, 0 - аренда у другого узла
+    private long acquireStored(long documentId) {
+        long token = store.tryAcquire(documentId, nodeId, leaseMillis);
+        if (token > 0) {
+            long acquireTime = System.currentTimeMillis();
+            held.compute(documentId, (id, lease) -> {
+                Held result = lease != null && lease.token == token && lease.released == null
+                        ? lease : new Held(token, acquireTime);
+                result.users++;
+                result.lingerUntil = 0;
+                return result;
+            });
+        }
+        return token;
+    }
+
+    /*
+     * Возврат отмеченной аренды в хранилище вне карты, затем удаление записи и пробуждение ожидающих
+     */
+    private void releaseStored(long documentId, Held lease) {
+        try {
+            store.release(documentId, nodeId, lease.token);
+        } catch (RuntimeException e) {
+            // аренда истечет в хранилище сама
+            LOGGER.error("Cant release document lease. document [{}] token [{}]", documentId, lease.token, e);
+        } finally {
+            held.remove(documentId, lease);
+            lease.released.complete(null);
+        }
+    }
+
+    public void release(long documentId, long token) {
+        long now = System.currentTimeMillis();
+        boolean[] releasing = new boolean[1];
+        Held lease = held.computeIfPresent(documentId, (id, current) -> {
+            if (current.token != token || current.released != null || --current.users > 0) {
+                return current;
+            }
+            if (lingerMillis > 0) {
+                current.lingerUntil = now + lingerMillis;
+                return current;
+            }
+            current.released = new CompletableFuture<>();
+            releasing[0] = true;
+            return current;
+        });
+        if (releasing[0]) {
+            releaseStored(documentId, lease);
+        }
+    }
+
+    /*
+     * Продление используемых аренд и освобождение неиспользуемых после lingerMillis
+     */
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, Held> entry : held.entrySet()) {
+            long documentId = entry.getKey();
+            Held lease = entry.getValue();
+            boolean[] releasing = new boolean[1];
+            Held current = held.computeIfPresent(documentId, (id, value) -> {
+                if (value == lease && value.released == null && value.users == 0 && value.lingerUntil <= now) {
+                    value.released = new CompletableFuture<>();
+                    releasing[0] = true;
+                }
+                return value;
+            });
+            if (current != lease) {
+                continue;
+            }
+            if (releasing[0]) {
+                releaseStored(documentId, lease);
+                continue;
+            }
+            if (lease.released != null) {
+                continue;
+            }
+            try {
+                if (!store.renew(documentId, nodeId, lease.token, leaseMillis) && removeLost(documentId, lease)) {
+                    LOGGER.error("Document lease lost. document [{}] token [{}]", documentId, lease.token);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("Cant renew document lease. document [{}] token [{}]", documentId, lease.token, e);
+            }
+        }
+    }
+
+    /*
+     * Удаление потерянной аренды, если ее не вернули в хранилище, пока шло продление
+     */
+    private boolean removeLost(long documentId, Held lease) {
+        boolean[] removed = new boolean[1];
+        held.computeIfPresent(documentId, (id, current) -> {
+            if (current != lease || current.released != null) {
+                return current;
+            }
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+}
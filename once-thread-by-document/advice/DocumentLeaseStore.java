@@ -0,0 +1,26 @@
+package advice;
+
+
+/**
+ * Общее для узлов кластера хранилище аренды документов (Redis, ZooKeeper, таблица БД).
+ * Аренда ограничена по времени и продлевается владельцем, при падении узла она истекает сама.
+ * Каждая новая аренда документа получает fencing token больше всех предыдущих.
+ * Для тестов и запуска нескольких узлов в одной JVM - {@link InProcessDocumentLeaseStore}.
+ */
+public interface DocumentLeaseStore {
+
+    /**
+     * Захват аренды. Если аренда уже у owner - продлевается с тем же токеном
+     *
+     * @return fencing token, 0 - аренда у другого узла
+     */
+    long tryAcquire(long documentId, String owner, long leaseMillis);
+
+    /**
+     * @return false - аренда истекла или перешла другому узлу
+     */
+    boolean renew(long documentId, String owner, long token, long leaseMillis);
+
+    void release(long documentId, String owner, long token);
+
+}
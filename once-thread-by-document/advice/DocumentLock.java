@@ -0,0 +1,324 @@
+package advice;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Честная (FIFO) блокировка чтения/записи одного документа, {@link DocumentLockManager}.
+ * В отличие от ReentrantReadWriteLock захват не обязательно принадлежит потоку: асинхронный захват
+ * ({@link #acquireAsync}) ждет в той же очереди без потока и освобождается из любого потока,
+ * когда завершится результат метода. Синхронный захват реентерабелен, как и раньше:
+ * повторный захват тем же потоком не ждет, кроме EXCLUSIVE внутри SHARED - он не дождется.
+ * Асинхронный захват не реентерабелен и не учитывает владельца: из потока, который держит документ
+ * синхронно, он запрещен ({@link DocumentLockManager#lockAsync}), а синхронный захват документа,
+ * занятого асинхронно, ждет в очереди до освобождения результата.
+ * Новый захват встает в очередь за любым ожидающим, поэтому SHARED не обгоняют ожидающий EXCLUSIVE.
+ * Состояние под монитором объекта, ожидающий поток паркуется вне монитора и будится адресно,
+ * асинхронные ожидания завершаются после выхода из монитора.
+ */
+class DocumentLock {
+
+    // Владелец EXCLUSIVE асинхронного захвата, такой захват один и не реентерабелен
+    private static final Object ASYNC_OWNER = new Object();
+
+    private static final int WAITING = 0;
+    private static final int GRANTED = 1;
+    private static final int FAILED = 2;
+
+    private static final class Waiter {
+        private final OnceThreadByDocument.Mode mode;
+        // null - асинхронный захват
+        private final Thread thread;
+        private final CompletableFuture<Boolean> future;
+        // меняется под монитором DocumentLock, синхронный ожидающий читает без него
+        private volatile int state;
+        private ScheduledFuture<?> timeout;
+
+        private Waiter(OnceThreadByDocument.Mode mode, Thread thread, CompletableFuture<Boolean> future) {
+            this.mode = mode;
+            this.thread = thread;
+            this.future = future;
+        }
+    }
+
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private int readers;
+    // потоки синхронных SHARED захватов, по записи на захват; создается при первом
+    private List<Thread> readHolders;
+    // Thread, ASYNC_OWNER или null
+    private Object writer;
+    private int writeHolds;
+    // держатели, превысившие maxHold; пока они есть, ожидания сразу получают отказ
+    private int stuckHolds;
+
+    /**
+     * Захват без ожидания, с учетом очереди
+     */
+    boolean tryAcquire(OnceThreadByDocument.Mode mode) {
+        Thread thread = Thread.currentThread();
+        synchronized (this) {
+            if (mode == OnceThreadByDocument.Mode.EXCLUSIVE) {
+                if (writer == thread) {
+                    writeHolds++;
+                    return true;
+                }
+                if (queue.isEmpty() && writer == null && readers == 0) {
+                    writer = thread;
+                    writeHolds = 1;
+                    return true;
+                }
+                return false;
+            }
+            if (writer == thread || readHolders != null && readHolders.contains(thread)
+                    || queue.isEmpty() && writer == null) {
+                addReader(thread);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Ожидание в очереди не дольше timeoutMillis
+     *
+     * @return false - не дождались или держатель завис
+     */
+    boolean await(OnceThreadByDocument.Mode mode, long timeoutMillis) throws InterruptedException {
+        Waiter waiter = new Waiter(mode, Thread.currentThread(), null);
+        List<Waiter> granted;
+        synchronized (this) {
+            if (stuckHolds > 0) {
+                return false;
+            }
+            queue.addLast(waiter);
+            granted = grant();
+        }
+        complete(granted);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean interrupted = false;
+        while (waiter.state == WAITING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                interrupted = true;
+                break;
+            }
+        }
+        synchronized (this) {
+            if (waiter.state == GRANTED) {
+                if (interrupted) {
+                    // захват уже выдан, прерывание остается вызывающему коду
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+            granted = fail(waiter);
+        }
+        complete(granted);
+        if (interrupted) {
+            throw new InterruptedException();
+        }
+        return false;
+    }
+
+    /**
+     * Асинхронный захват: future завершается true после выдачи, false - не дождались за timeoutMillis
+     * или держатель завис. Поток не ждет, таймаут отсчитывает scheduler
+     */
+    CompletableFuture<Boolean> acquireAsync(OnceThreadByDocument.Mode mode, long timeoutMillis,
+                                            ScheduledExecutorService scheduler) {
+        Waiter waiter = new Waiter(mode, null, new CompletableFuture<>());
+        List<Waiter> granted;
+        synchronized (this) {
+            if (mode == OnceThreadByDocument.Mode.EXCLUSIVE
+                    ? queue.isEmpty() && writer == null && readers == 0
+                    : queue.isEmpty() && writer == null) {
+                waiter.state = GRANTED;
+                take(waiter);
+                waiter.future.complete(true);
+                return waiter.future;
+            }
+            if (stuckHolds > 0) {
+                waiter.future.complete(false);
+                return waiter.future;
+            }
+            queue.addLast(waiter);
+            granted = grant();
+            if (waiter.state == WAITING) {
+                waiter.timeout = scheduler.schedule(() -> expire(waiter), timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        complete(granted);
+        return waiter.future;
+    }
+
+    private void expire(Waiter waiter) {
+        List<Waiter> granted;
+        synchronized (this) {
+            if (waiter.state != WAITING) {
+                return;
+            }
+            granted = fail(waiter);
+        }
+        complete(granted);
+    }
+
+    void release(OnceThreadByDocument.Mode mode) {
+        Thread thread = Thread.currentThread();
+        List<Waiter> granted;
+        synchronized (this) {
+            if (mode == OnceThreadByDocument.Mode.EXCLUSIVE) {
+                if (writer != thread) {
+                    throw new IllegalMonitorStateException("Document is not locked by current thread");
+                }
+                if (--writeHolds > 0) {
+                    return;
+                }
+                writer = null;
+            } else {
+                if (readHolders == null || !readHolders.remove(thread)) {
+                    throw new IllegalMonitorStateException("Document is not locked by current thread");
+                }
+                readers--;
+            }
+            granted = grant();
+        }
+        complete(granted);
+    }
+
+    // Освобождение асинхронного захвата, из любого потока
+    void releaseAsync(OnceThreadByDocument.Mode mode) {
+        List<Waiter> granted;
+        synchronized (this) {
+            if (mode == OnceThreadByDocument.Mode.EXCLUSIVE) {
+                if (writer != ASYNC_OWNER) {
+                    throw new IllegalMonitorStateException("Document is not locked asynchronously");
+                }
+                writer = null;
+                writeHolds = 0;
+            } else {
+                readers--;
+            }
+            granted = grant();
+        }
+        complete(granted);
+    }
+
+    /*
+     * Держатель превысил maxHold: все ожидающие сразу получают отказ, новые - до clearStuck()
+     */
+    void markStuck() {
+        List<Waiter> failed = new ArrayList<>();
+        synchronized (this) {
+            stuckHolds++;
+            for (Waiter waiter : queue) {
+                waiter.state = FAILED;
+                if (waiter.thread != null) {
+                    LockSupport.unpark(waiter.thread);
+                } else {
+                    failed.add(waiter);
+                }
+            }
+            queue.clear();
+        }
+        complete(failed);
+    }
+
+    synchronized void clearStuck() {
+        stuckHolds--;
+    }
+
+    synchronized boolean isHeldByCurrentThread() {
+        Thread thread = Thread.currentThread();
+        return writer == thread || readHolders != null && readHolders.contains(thread);
+    }
+
+    synchronized boolean isStuck() {
+        return stuckHolds > 0;
+    }
+
+    private void addReader(Thread thread) {
+        readers++;
+        if (thread != null) {
+            if (readHolders == null) {
+                readHolders = new ArrayList<>(2);
+            }
+            readHolders.add(thread);
+        }
+    }
+
+    private void take(Waiter waiter) {
+        if (waiter.mode == OnceThreadByDocument.Mode.EXCLUSIVE) {
+            writer = waiter.thread == null ? ASYNC_OWNER : waiter.thread;
+            writeHolds = 1;
+        } else {
+            addReader(waiter.thread);
+        }
+    }
+
+    /*
+     * Выдача захватов с головы очереди: один EXCLUSIVE или подряд идущие SHARED.
+     * Возвращает асинхронные ожидания для завершения вне монитора
+     */
+    private List<Waiter> grant() {
+        List<Waiter> granted = null;
+        while (!queue.isEmpty() && writer == null) {
+            Waiter head = queue.peekFirst();
+            if (head.mode == OnceThreadByDocument.Mode.EXCLUSIVE && readers > 0) {
+                break;
+            }
+            queue.pollFirst();
+            head.state = GRANTED;
+            take(head);
+            if (head.thread != null) {
+                LockSupport.unpark(head.thread);
+            } else {
+                if (granted == null) {
+                    granted = new ArrayList<>(2);
+                }
+                granted.add(head);
+            }
+        }
+        return granted;
+    }
+
+    // Снятие ожидания из очереди, за ним могут стать доступны следующие
+    private List<Waiter> fail(Waiter waiter) {
+        queue.remove(waiter);
+        waiter.state = FAILED;
+        List<Waiter> granted = grant();
+        if (waiter.thread == null) {
+            if (granted == null) {
+                granted = new ArrayList<>(1);
+            }
+            granted.add(waiter);
+        }
+        return granted;
+    }
+
+    private static void complete(List<Waiter> waiters) {
+        if (waiters == null) {
+            return;
+        }
+        for (Waiter waiter : waiters) {
+            if (waiter.thread == null) {
+                if (waiter.timeout != null) {
+                    waiter.timeout.cancel(false);
+                }
+                waiter.future.complete(waiter.state == GRANTED);
+            }
+        }
+    }
+
+}
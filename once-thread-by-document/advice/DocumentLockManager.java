@@ -0,0 +1,318 @@
+package advice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Блокировки документов по id.
+ * На документ заводится одна запись с честной (FIFO) блокировкой чтения/записи {@link DocumentLock}
+ * и счетчиком вызовов, которые ее держат или ждут. Запись создается первым потоком и удаляется последним, повторные попытки
+ * и новые объекты блокировок на каждую попытку не нужны. Ожидающие потоки стоят в очереди блокировки.
+ * SHARED захваты выполняются параллельно. Новый SHARED встает в очередь за ожидающим EXCLUSIVE,
+ * поэтому поток чтений не может бесконечно откладывать запись.
+ * Блокировка реентерабельна: вложенный вызов с тем же документом в том же потоке не ждет,
+ * кроме захвата EXCLUSIVE внутри SHARED - он не дождется и завершится по таймауту.
+ * Асинхронный захват {@link #lockAsync} ждет в той же очереди без потока.
+ * Удержание с ограничением времени регистрируется через {@link #watch}, сторож раз в
+ * {@link #WATCHDOG_PERIOD_MILLIS} ищет зависших держателей, см. {@link Hold}.
+ */
+public class DocumentLockManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DocumentLockManager.class);
+
+    public static final long WATCHDOG_PERIOD_MILLIS = 100;
+
+    private static final class Entry {
+        private final DocumentLock lock = new DocumentLock();
+        // изменяется только внутри compute/computeIfPresent карты
+        private int users;
+    }
+
+    /**
+     * Удержание блокировки с ограничением времени. Если держатель не отпустил документ за maxHoldMillis,
+     * сторож пишет в лог его стек и учитывает событие в {@link DocumentLockMetrics}. Держатель не прерывается.
+     * При failWaiters до освобождения документа новые захваты сразу получают отказ,
+     * а уже ожидающие тоже получают отказ, не дожидаясь своего таймаута.
+     */
+    public static final class Hold {
+        private final long documentId;
+        private final Entry entry;
+        // null - асинхронный захват, стек не снимается
+        private final Thread thread;
+        private final String method;
+        private final long maxHoldMillis;
+        private final boolean failWaiters;
+        private final long startTime = System.currentTimeMillis();
+        // под монитором Hold
+        private boolean stuck;
+
+        private Hold(long documentId, Entry entry, Thread thread, String method, long maxHoldMillis,
+                     boolean failWaiters) {
+            this.documentId = documentId;
+            this.entry = entry;
+            this.thread = thread;
+            this.method = method;
+            this.maxHoldMillis = maxHoldMillis;
+            this.failWaiters = failWaiters;
+        }
+    }
+
+    private final ConcurrentMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    // null - конфликты и зависания не учитываются
+    private final DocumentLockMetrics metrics;
+    private final Set<Hold> holds = ConcurrentHashMap.newKeySet();
+    private volatile ScheduledExecutorService scheduler;
+
+    public DocumentLockManager() {
+        this(null);
+    }
+
+    public DocumentLockManager(DocumentLockMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Захват блокировки документа
+     *
+     * @return false - не дождались за timeoutMillis или держатель документа завис, см. {@link #isStuck}
+     */
+    public boolean lock(long documentId, OnceThreadByDocument.Mode mode, long timeoutMillis)
+            throws InterruptedException {
+        Entry entry = entries.compute(documentId, (id, current) -> {
+            Entry result = current == null ? new Entry() : current;
+            result.users++;
+            return result;
+        });
+        boolean locked = false;
+        try {
+            locked = entry.lock.tryAcquire(mode);
+            if (!locked) {
+                if (metrics != null) {
+                    metrics.contended(documentId);
+                }
+                locked = entry.lock.await(mode, timeoutMillis);
+            }
+        } finally {
+            if (!locked) {
+                leave(documentId);
+            }
+        }
+        return locked;
+    }
+
+    /**
+     * Асинхронный захват блокировки документа, поток не ждет.
+     * Освобождается {@link #unlockAsync} из любого потока.
+     * Асинхронный захват не реентерабелен: поток, который держит документ синхронно, получил бы захват
+     * только после своего же освобождения и при ожидании результата завис бы до таймаута
+     *
+     * @return true - захвачен, false - не дождались за timeoutMillis или держатель документа завис
+     * @throws IllegalStateException документ захвачен синхронно текущим потоком
+     */
+    public CompletableFuture<Boolean> lockAsync(long documentId, OnceThreadByDocument.Mode mode, long timeoutMillis) {
+        if (isHeldByCurrentThread(documentId)) {
+            throw new IllegalStateException("Document is locked by current thread. document [" + documentId + "]");
+        }
+        Entry entry = entries.compute(documentId, (id, current) -> {
+            Entry result = current == null ? new Entry() : current;
+            result.users++;
+            return result;
+        });
+        CompletableFuture<Boolean> locked = entry.lock.acquireAsync(mode, timeoutMillis, scheduler());
+        if (!locked.isDone() && metrics != null) {
+            metrics.contended(documentId);
+        }
+        return locked.whenComplete((result, error) -> {
+            if (!Boolean.TRUE.equals(result)) {
+                leave(documentId);
+            }
+        });
+    }
+
+    public void unlockAsync(long documentId, OnceThreadByDocument.Mode mode) {
+        Entry entry = entries.get(documentId);
+        if (entry == null) {
+            throw new IllegalMonitorStateException("Document is not locked. document [" + documentId + "]");
+        }
+        entry.lock.releaseAsync(mode);
+        leave(documentId);
+    }
+
+    /**
+     * Захват нескольких документов в порядке возрастания id: общий для всех потоков порядок исключает
+     * взаимную блокировку. Одно ожидание на все документы, при отказе уже захваченные освобождаются.
+     *
+     * @param documentIds по возрастанию, без повторов
+     * @return -1 - захвачены все, иначе индекс документа, который не дождались (см. {@link #lock})
+     */
+    public int lockAll(long[] documentIds, OnceThreadByDocument.Mode mode, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        int locked = 0;
+        try {
+            while (locked < documentIds.length) {
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                if (!lock(documentIds[locked], mode, remaining)) {
+                    return locked;
+                }
+                locked++;
+            }
+        } finally {
+            if (locked < documentIds.length) {
+                for (int i = locked - 1; i >= 0; i--) {
+                    unlock(documentIds[i], mode);
+                }
+            }
+        }
+        return -1;
+    }
+
+    public void unlockAll(long[] documentIds, OnceThreadByDocument.Mode mode) {
+        for (int i = documentIds.length - 1; i >= 0; i--) {
+            unlock(documentIds[i], mode);
+        }
+    }
+
+    public void unlock(long documentId, OnceThreadByDocument.Mode mode) {
+        Entry entry = entries.get(documentId);
+        if (entry == null) {
+            throw new IllegalMonitorStateException("Document is not locked. document [" + documentId + "]");
+        }
+        entry.lock.release(mode);
+        leave(documentId);
+    }
+
+    private void leave(long documentId) {
+        entries.computeIfPresent(documentId, (id, entry) -> --entry.users == 0 ? null : entry);
+    }
+
+    /**
+     * Регистрация удержания захваченного текущим потоком документа для сторожа,
+     * снимается {@link #unwatch} до {@link #unlock}
+     *
+     * @param method имя метода для лога и метрик
+     */
+    public Hold watch(long documentId, String method, long maxHoldMillis, boolean failWaiters) {
+        return watch(documentId, Thread.currentThread(), method, maxHoldMillis, failWaiters);
+    }
+
+    // То же для асинхронного захвата, у держателя нет потока
+    public Hold watchAsync(long documentId, String method, long maxHoldMillis, boolean failWaiters) {
+        return watch(documentId, null, method, maxHoldMillis, failWaiters);
+    }
+
+    private Hold watch(long documentId, Thread thread, String method, long maxHoldMillis, boolean failWaiters) {
+        Entry entry = entries.get(documentId);
+        if (entry == null) {
+            throw new IllegalMonitorStateException("Document is not locked. document [" + documentId + "]");
+        }
+        Hold hold = new Hold(documentId, entry, thread, method, maxHoldMillis, failWaiters);
+        holds.add(hold);
+        scheduler();
+        return hold;
+    }
+
+    public void unwatch(Hold hold) {
+        holds.remove(hold);
+        boolean stuck;
+        synchronized (hold) {
+            stuck = hold.stuck;
+            if (stuck && hold.failWaiters) {
+                hold.entry.lock.clearStuck();
+            }
+        }
+        if (stuck) {
+            LOGGER.info("Stuck document lock released. document [{}] method [{}] held [{}] ms",
+                    hold.documentId, hold.method, System.currentTimeMillis() - hold.startTime);
+        }
+    }
+
+    // Текущий поток держит документ синхронным захватом
+    public boolean isHeldByCurrentThread(long documentId) {
+        Entry entry = entries.get(documentId);
+        return entry != null && entry.lock.isHeldByCurrentThread();
+    }
+
+    // Документ удерживается дольше maxHold, новые захваты получают отказ
+    public boolean isStuck(long documentId) {
+        Entry entry = entries.get(documentId);
+        return entry != null && entry.lock.isStuck();
+    }
+
+    /*
+     * Поток сторожа и таймаутов асинхронных захватов, создается при первом обращении
+     */
+    private ScheduledExecutorService scheduler() {
+        ScheduledExecutorService result = scheduler;
+        if (result == null) {
+            synchronized (this) {
+                result = scheduler;
+                if (result == null) {
+                    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                        Thread thread = new Thread(runnable, "document-lock-watchdog");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    // таймауты асинхронных захватов обычно отменяются, не держим их в очереди
+                    executor.setRemoveOnCancelPolicy(true);
+                    executor.scheduleWithFixedDelay(this::checkHolds,
+                            WATCHDOG_PERIOD_MILLIS, WATCHDOG_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+                    scheduler = executor;
+                    result = executor;
+                }
+            }
+        }
+        return result;
+    }
+
+    private void checkHolds() {
+        long now = System.currentTimeMillis();
+        for (Hold hold : holds) {
+            // stuck меняет только этот поток
+            if (hold.stuck || now - hold.startTime < hold.maxHoldMillis) {
+                continue;
+            }
+            // стек до отметки: после нее держатель может отпустить документ
+            StackTraceElement[] stack = hold.thread == null ? new StackTraceElement[0] : hold.thread.getStackTrace();
+            synchronized (hold) {
+                if (!holds.contains(hold)) {
+                    continue;
+                }
+                hold.stuck = true;
+                if (hold.failWaiters) {
+                    hold.entry.lock.markStuck();
+                }
+            }
+            String thread = hold.thread == null ? "async" : hold.thread.getName();
+            String stackTrace = format(stack);
+            LOGGER.error("Document lock held longer than [{}] ms. document [{}] method [{}] thread [{}]\n{}",
+                    hold.maxHoldMillis, hold.documentId, hold.method, thread, stackTrace);
+            if (metrics != null) {
+                metrics.stuck(hold.documentId, hold.method, thread, now - hold.startTime, stackTrace);
+            }
+        }
+    }
+
+    private static String format(StackTraceElement[] stack) {
+        StringBuilder result = new StringBuilder();
+        for (StackTraceElement element : stack) {
+            result.append("\tat ").append(element).append('\n');
+        }
+        return result.toString();
+    }
+
+    // Количество документов, которые сейчас заблокированы или ожидаются
+    public int size() {
+        return entries.size();
+    }
+
+}
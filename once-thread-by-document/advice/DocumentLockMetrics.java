@@ -0,0 +1,329 @@
+package advice;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Телеметрия блокировок документов: ожидание и удержание по методам с {@link OnceThreadByDocument},
+ * счетчики таймаутов и прерываний, документы с наибольшим числом конфликтов, зависшие держатели.
+ * Запись без выделения памяти (кроме первого вызова нового метода), снимок snapshot() опрашивается снаружи.
+ */
+public class DocumentLockMetrics {
+
+    private static final int HOT_DOCUMENT_CAPACITY = 64;
+    private static final int STUCK_HOLD_HISTORY = 16;
+
+    private final ConcurrentMap<Method, MethodStats> methods = new ConcurrentHashMap<>();
+    private final HotDocuments hotDocuments = new HotDocuments(HOT_DOCUMENT_CAPACITY);
+    private final LongAdder stuckHolds = new LongAdder();
+    // последние зависания, под своим монитором
+    private final ArrayDeque<StuckHold> recentStuckHolds = new ArrayDeque<>(STUCK_HOLD_HISTORY);
+
+    public MethodStats forMethod(Method method) {
+        MethodStats stats = methods.get(method);
+        if (stats == null) {
+            stats = methods.computeIfAbsent(method, key -> new MethodStats());
+        }
+        return stats;
+    }
+
+    // Документ был занят другим потоком в момент захвата
+    public void contended(long documentId) {
+        hotDocuments.add(documentId);
+    }
+
+    // Держатель документа превысил maxHold, вызывается сторожем DocumentLockManager
+    public void stuck(long documentId, String method, String thread, long heldMillis, String stackTrace) {
+        stuckHolds.increment();
+        StuckHold event = new StuckHold(System.currentTimeMillis(), documentId, method, thread, heldMillis, stackTrace);
+        synchronized (recentStuckHolds) {
+            if (recentStuckHolds.size() == STUCK_HOLD_HISTORY) {
+                recentStuckHolds.removeFirst();
+            }
+            recentStuckHolds.addLast(event);
+        }
+    }
+
+    /**
+     * @param lockedDocuments количество документов, которые сейчас заблокированы или ожидаются
+     * @param hotCount        сколько самых конфликтных документов вернуть
+     */
+    public Snapshot snapshot(int lockedDocuments, int hotCount) {
+        Map<String, MethodSnapshot> byMethod = new TreeMap<>();
+        for (Map.Entry<Method, MethodStats> entry : methods.entrySet()) {
+            Method method = entry.getKey();
+            MethodStats stats = entry.getValue();
+            byMethod.put(method.getDeclaringClass().getSimpleName() + "." + method.getName(),
+                    new MethodSnapshot(stats.wait.summary(), stats.hold.summary(),
+                            stats.timeouts.sum(), stats.interrupts.sum(), stats.coalesced.sum()));
+        }
+        List<StuckHold> stuck;
+        synchronized (recentStuckHolds) {
+            stuck = new ArrayList<>(recentStuckHolds);
+        }
+        return new Snapshot(Collections.unmodifiableMap(byMethod), lockedDocuments, hotDocuments.top(hotCount),
+                stuckHolds.sum(), Collections.unmodifiableList(stuck));
+    }
+
+    public static final class MethodStats {
+        private final DurationHistogram wait = new DurationHistogram();
+        private final DurationHistogram hold = new DurationHistogram();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder interrupts = new LongAdder();
+        private final LongAdder coalesced = new LongAdder();
+
+        private MethodStats() {
+        }
+
+        public void waited(long nanos) {
+            wait.record(nanos);
+        }
+
+        public void held(long nanos) {
+            hold.record(nanos);
+        }
+
+        public void timeout() {
+            timeouts.increment();
+        }
+
+        public void interrupt() {
+            interrupts.increment();
+        }
+
+        public void coalesced() {
+            coalesced.increment();
+        }
+    }
+
+    /*
+     * Частые конфликтные документы по алгоритму Space-Saving: фиксированная таблица,
+     * новый документ при заполненной таблице вытесняет самый редкий и наследует его счетчик.
+     * Документ с реальной долей конфликтов больше 1/capacity гарантированно остается в таблице,
+     * счетчик может быть завышен не больше чем на error.
+     * Вызывается только на пути ожидания блокировки, поэтому простая синхронизация здесь не мешает.
+     */
+    private static final class HotDocuments {
+        private final long[] ids;
+        private final long[] counts;
+        private final long[] errors;
+        private int size;
+
+        private HotDocuments(int capacity) {
+            ids = new long[capacity];
+            counts = new long[capacity];
+            errors = new long[capacity];
+        }
+
+        private synchronized void add(long documentId) {
+            int min = 0;
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == documentId) {
+                    counts[i]++;
+                    return;
+                }
+                if (counts[i] < counts[min]) {
+                    min = i;
+                }
+            }
+            if (size < ids.length) {
+                ids[size] = documentId;
+                counts[size] = 1;
+                errors[size] = 0;
+                size++;
+                return;
+            }
+            ids[min] = documentId;
+            errors[min] = counts[min];
+            counts[min]++;
+        }
+
+        private synchronized List<HotDocument> top(int count) {
+            List<HotDocument> result = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(new HotDocument(ids[i], counts[i], errors[i]));
+            }
+            result.sort((a, b) -> Long.compare(b.contentions, a.contentions));
+            return result.size() > count ? new ArrayList<>(result.subList(0, count)) : result;
+        }
+    }
+
+    public static final class HotDocument {
+        private final long documentId;
+        private final long contentions;
+        private final long error;
+
+        private HotDocument(long documentId, long contentions, long error) {
+            this.documentId = documentId;
+            this.contentions = contentions;
+            this.error = error;
+        }
+
+        public long getDocumentId() {
+            return documentId;
+        }
+
+        public long getContentions() {
+            return contentions;
+        }
+
+        // Насколько contentions может быть завышен
+        public long getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return documentId + "=" + contentions + (error > 0 ? "(±" + error + ")" : "");
+        }
+    }
+
+    public static final class StuckHold {
+        private final long time;
+        private final long documentId;
+        private final String method;
+        private final String thread;
+        private final long heldMillis;
+        private final String stackTrace;
+
+        private StuckHold(long time, long documentId, String method, String thread, long heldMillis,
+                          String stackTrace) {
+            this.time = time;
+            this.documentId = documentId;
+            this.method = method;
+            this.thread = thread;
+            this.heldMillis = heldMillis;
+            this.stackTrace = stackTrace;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getDocumentId() {
+            return documentId;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getThread() {
+            return thread;
+        }
+
+        // Сколько документ удерживался к моменту обнаружения
+        public long getHeldMillis() {
+            return heldMillis;
+        }
+
+        public String getStackTrace() {
+            return stackTrace;
+        }
+
+        @Override
+        public String toString() {
+            return "document=" + documentId + " method=" + method + " thread=" + thread + " held=" + heldMillis;
+        }
+    }
+
+    public static final class MethodSnapshot {
+        private final DurationHistogram.Summary wait;
+        private final DurationHistogram.Summary hold;
+        private final long timeouts;
+        private final long interrupts;
+        private final long coalesced;
+
+        private MethodSnapshot(DurationHistogram.Summary wait, DurationHistogram.Summary hold,
+                               long timeouts, long interrupts, long coalesced) {
+            this.wait = wait;
+            this.hold = hold;
+            this.timeouts = timeouts;
+            this.interrupts = interrupts;
+            this.coalesced = coalesced;
+        }
+
+        // Ожидание блокировки, включая неудачные попытки
+        public DurationHistogram.Summary getWait() {
+            return wait;
+        }
+
+        public DurationHistogram.Summary getHold() {
+            return hold;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public long getInterrupts() {
+            return interrupts;
+        }
+
+        // Вызовы, замененные более поздним вызовом того же документа
+        public long getCoalesced() {
+            return coalesced;
+        }
+
+        @Override
+        public String toString() {
+            return "wait[" + wait + "] hold[" + hold + "] timeouts=" + timeouts + " interrupts=" + interrupts +
+                    " coalesced=" + coalesced;
+        }
+    }
+
+    public static final class Snapshot {
+        private final Map<String, MethodSnapshot> methods;
+        private final int lockedDocuments;
+        private final List<HotDocument> hotDocuments;
+        private final long stuckHolds;
+        private final List<StuckHold> recentStuckHolds;
+
+        private Snapshot(Map<String, MethodSnapshot> methods, int lockedDocuments, List<HotDocument> hotDocuments,
+                         long stuckHolds, List<StuckHold> recentStuckHolds) {
+            this.methods = methods;
+            this.lockedDocuments = lockedDocuments;
+            this.hotDocuments = hotDocuments;
+            this.stuckHolds = stuckHolds;
+            this.recentStuckHolds = recentStuckHolds;
+        }
+
+        // Ключ - Класс.метод
+        public Map<String, MethodSnapshot> getMethods() {
+            return methods;
+        }
+
+        public int getLockedDocuments() {
+            return lockedDocuments;
+        }
+
+        public List<HotDocument> getHotDocuments() {
+            return hotDocuments;
+        }
+
+        public long getStuckHolds() {
+            return stuckHolds;
+        }
+
+        // Последние зависания, старые первыми
+        public List<StuckHold> getRecentStuckHolds() {
+            return recentStuckHolds;
+        }
+
+        @Override
+        public String toString() {
+            return "methods=" + methods + " lockedDocuments=" + lockedDocuments + " hotDocuments=" + hotDocuments +
+                    " stuckHolds=" + stuckHolds + " recentStuckHolds=" + recentStuckHolds;
+        }
+    }
+
+}
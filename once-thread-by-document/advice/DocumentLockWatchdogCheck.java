@@ -0,0 +1,146 @@
+package advice;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Проверка сторожа {@link DocumentLockManager} на зависших держателях под конкурентной нагрузкой.
+ * Два держателя захватывают документы 1 и 2 и не отпускают их HUNG_MILLIS при ограничении MAX_HOLD_MILLIS,
+ * THREADS потоков делают CALLS захватов по документам 1..DOCUMENTS с таймаутом TIMEOUT_MILLIS.
+ * Прогон выполняется с failWaiters и без него. Проверяется:
+ * <ul>
+ * <li>с failWaiters отказ по зависшему документу приходит раньше таймаута, без него - по таймауту</li>
+ * <li>прерывание, которым сторож будит ожидающих, не доходит до вызывающего</li>
+ * <li>документы без зависших держателей захватываются</li>
+ * <li>в {@link DocumentLockMetrics} учтены оба зависания со стеком держателя</li>
+ * </ul>
+ * Запуск: java advice.DocumentLockWatchdogCheck, при нарушении завершается с IllegalStateException.
+ */
+public final class DocumentLockWatchdogCheck {
+
+    private static final OnceThreadByDocument.Mode EXCLUSIVE = OnceThreadByDocument.Mode.EXCLUSIVE;
+
+    static final long MAX_HOLD_MILLIS = 200;
+    static final long HUNG_MILLIS = 3000;
+    static final long TIMEOUT_MILLIS = 2000;
+    static final int THREADS = 16;
+    static final int CALLS = 200;
+    static final int DOCUMENTS = 10;
+
+    private DocumentLockWatchdogCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        run(true);
+        run(false);
+        System.out.println("OK");
+    }
+
+    static void run(boolean failWaiters) throws Exception {
+        DocumentLockMetrics metrics = new DocumentLockMetrics();
+        DocumentLockManager lockManager = new DocumentLockManager(metrics);
+
+        CountDownLatch held = new CountDownLatch(2);
+        Thread[] hung = new Thread[2];
+        for (int i = 0; i < hung.length; i++) {
+            long documentId = i + 1;
+            hung[i] = new Thread(() -> hold(lockManager, documentId, failWaiters, held), "hung-" + documentId);
+            hung[i].start();
+        }
+        held.await();
+
+        AtomicInteger locked = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        AtomicInteger leakedInterrupts = new AtomicInteger();
+        AtomicLong refusedNanos = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < CALLS; i++) {
+                    long documentId = 1 + random.nextInt(DOCUMENTS);
+                    long callStart = System.nanoTime();
+                    boolean acquired = lockManager.lock(documentId, EXCLUSIVE, TIMEOUT_MILLIS);
+                    if (Thread.interrupted()) {
+                        leakedInterrupts.incrementAndGet();
+                    }
+                    if (!acquired) {
+                        refused.incrementAndGet();
+                        refusedNanos.addAndGet(System.nanoTime() - callStart);
+                        continue;
+                    }
+                    locked.incrementAndGet();
+                    lockManager.unlock(documentId, EXCLUSIVE);
+                }
+                return null;
+            });
+        }
+        executor.shutdown();
+        check(executor.awaitTermination(2 * HUNG_MILLIS + TIMEOUT_MILLIS, TimeUnit.MILLISECONDS),
+                "load did not finish");
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long refusedAvgMillis = refused.get() == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(refusedNanos.get() / refused.get());
+
+        DocumentLockMetrics.Snapshot snapshot = metrics.snapshot(lockManager.size(), 3);
+        List<DocumentLockMetrics.StuckHold> stuck = snapshot.getRecentStuckHolds();
+        System.out.println("failWaiters=" + failWaiters + " wall ms=" + wallMillis + " locked=" + locked
+                + " refused=" + refused + " avg refused wait ms=" + refusedAvgMillis
+                + " leaked interrupts=" + leakedInterrupts + " stuck=" + snapshot.getStuckHolds());
+
+        check(leakedInterrupts.get() == 0, "watchdog interrupt reached the caller");
+        check(locked.get() > 0, "documents without hung holders were not locked");
+        check(refused.get() > 0, "hung documents were locked");
+        if (failWaiters) {
+            check(refusedAvgMillis < TIMEOUT_MILLIS / 2, "waiters were not failed fast: " + refusedAvgMillis + " ms");
+            check(lockManager.isStuck(1) && lockManager.isStuck(2), "hung documents are not marked stuck");
+        } else {
+            check(refusedAvgMillis >= TIMEOUT_MILLIS - DocumentLockManager.WATCHDOG_PERIOD_MILLIS,
+                    "waiters failed before timeout without failWaiters: " + refusedAvgMillis + " ms");
+        }
+        check(snapshot.getStuckHolds() == 2, "stuck holds recorded: " + snapshot.getStuckHolds());
+        for (DocumentLockMetrics.StuckHold hold : stuck) {
+            check(hold.getHeldMillis() >= MAX_HOLD_MILLIS, "stuck hold below limit: " + hold);
+            check(hold.getThread().startsWith("hung-"), "stuck hold of a wrong thread: " + hold);
+            check(hold.getStackTrace().contains(DocumentLockWatchdogCheck.class.getName() + ".hold"),
+                    "holder stack is not recorded: " + hold);
+        }
+
+        for (Thread thread : hung) {
+            thread.join();
+        }
+        check(lockManager.size() == 0, "documents left locked: " + lockManager.size());
+        check(!lockManager.isStuck(1), "released document is still stuck");
+    }
+
+    private static void hold(DocumentLockManager lockManager, long documentId, boolean failWaiters,
+                             CountDownLatch held) {
+        try {
+            check(lockManager.lock(documentId, EXCLUSIVE, TIMEOUT_MILLIS), "hung holder did not lock");
+            DocumentLockManager.Hold hold = lockManager.watch(documentId, "hung", MAX_HOLD_MILLIS, failWaiters);
+            held.countDown();
+            try {
+                Thread.sleep(HUNG_MILLIS);
+            } finally {
+                lockManager.unwatch(hold);
+                lockManager.unlock(documentId, EXCLUSIVE);
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("hung holder interrupted", e);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+}
@@ -1,21 +1,31 @@
 package advice;
 
-import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.reflect.MethodSignature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import ru.systemres.vsrf.lk.dto.document.DocumentBase;
 import ru.systemres.vsrf.lk.exception.DocumentLockException;
 
-import java.util.Map;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 
 @Aspect
@@ -23,112 +33,429 @@ import java.util.concurrent.locks.ReentrantLock;
 public class DocumentNewAdvice {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DocumentNewAdvice.class);
-    private static final Map<Long, ReentrantLock> lockMap = new ConcurrentHashMap<>();
+    private static final DocumentLockMetrics metrics = new DocumentLockMetrics();
+    private static final DocumentLockManager lockManager = new DocumentLockManager(metrics);
+    private static final DocumentWriteCoalescer coalescer = new DocumentWriteCoalescer();
 
     @Value("#{'${document.lock.try.count:4}'}")
     private int configTryCount;
     @Value("#{'${document.lock.try.timeout:300}'}")
     private long configTryTimeout;
-
+    /**
+     * Общее время ожидания блокировки документа.
+     * 0 - как раньше, configTryCount * configTryTimeout
+     */
+    @Value("#{'${document.lock.timeout:0}'}")
+    private long configLockTimeout;
+    /**
+     * Максимальное время удержания документа для методов без {@link OnceThreadByDocument#maxHoldMillis()}.
+     * 0 - без ограничения
+     */
+    @Value("#{'${document.lock.max.hold:0}'}")
+    private long configMaxHold;
+    // При зависшем держателе сразу отказывать ожидающим и новым захватам документа
+    @Value("#{'${document.lock.max.hold.fail.waiters:true}'}")
+    private boolean configMaxHoldFailWaiters;
 
     /**
-     * Функция возвращает из сигнатуры метода documentId.
-     * Имя аргумента содержащего documentId указывается в аннотации
-     *
-     * @param onceThreadByDocument содержит имя аргумента {@link OnceThreadByDocument#name()}
+     * Хранилище аренды документов между узлами кластера.
+     * Не задано - блокировка только внутри JVM
      */
-    private long getDocumentId(JoinPoint joinPoint, OnceThreadByDocument onceThreadByDocument) {
-        MethodSignature ms = (MethodSignature) joinPoint.getSignature();
-        String[] paramNames = ms.getParameterNames();
-
-        for (int i = 0; i < paramNames.length; i++) {
-            if (paramNames[i].equals(onceThreadByDocument.name())) {
-                if (joinPoint.getArgs()[i] instanceof Long) {
-                    return Long.parseLong(joinPoint.getArgs()[i].toString());
-                } else if (joinPoint.getArgs()[i] instanceof DocumentBase) {
-                    return ((DocumentBase) joinPoint.getArgs()[i]).getId();
-                }
-            }
+    @Autowired(required = false)
+    private DocumentLeaseStore documentLeaseStore;
+    // Пусто - случайный id при запуске
+    @Value("#{'${document.lock.node:}'}")
+    private String configNodeId;
+    @Value("#{'${document.lock.lease.millis:30000}'}")
+    private long configLeaseMillis;
+    // Сколько узел держит аренду после освобождения, 0 - отпускает сразу
+    @Value("#{'${document.lock.lease.linger:500}'}")
+    private long configLeaseLinger;
+
+    // Потоки асинхронных методов, дождавшихся блокировки в очереди или аренды в кластере
+    @Value("#{'${document.lock.async.threads:4}'}")
+    private int configAsyncThreads;
+
+    private DocumentLeaseManager leaseManager;
+    private ExecutorService asyncExecutor;
+    // Номер параметра FencingToken метода, -1 - нет
+    private final ConcurrentMap<Method, Integer> fencingTokenIndexes = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger asyncThreads = new AtomicInteger();
+        asyncExecutor = Executors.newFixedThreadPool(Math.max(1, configAsyncThreads), runnable -> {
+            Thread thread = new Thread(runnable, "document-lock-async-" + asyncThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (documentLeaseStore != null) {
+            String nodeId = configNodeId.isEmpty() ? UUID.randomUUID().toString() : configNodeId;
+            leaseManager = new DocumentLeaseManager(nodeId, documentLeaseStore, configLeaseMillis, configLeaseLinger);
+            leaseManager.start();
+            LOGGER.info("Document leases enabled. node [{}]", nodeId);
         }
+    }
 
-        throw new RuntimeException("DocumentId not found from method signature");
+    @PreDestroy
+    public void destroy() {
+        if (leaseManager != null) {
+            leaseManager.stop();
+        }
+        asyncExecutor.shutdown();
     }
 
+
     /**
-     * Попытка положить свою блокировку на документ в Map
+     * Функция возвращает способ получения documentId из сигнатуры метода.
+     * Имя аргумента содержащего documentId указывается в аннотации,
+     * способ получения id определяется при первом вызове метода и кэшируется {@link DocumentIdExtractor}
      */
-    private void tryPutLock(ReentrantLock currentLock, long documentId) {
-        ReentrantLock ownLock = new ReentrantLock();
-        ownLock.lock();
-        ReentrantLock newAnotherLock = lockMap.putIfAbsent(documentId, ownLock);
-        if (currentLock != null) {
-            currentLock.unlock();
+    private DocumentIdExtractor getExtractor(MethodSignature ms) {
+        DocumentIdExtractor extractor = DocumentIdExtractor.CACHE.get(ms.getMethod());
+        if (extractor == null) {
+            extractor = DocumentIdExtractor.of(ms.getMethod(), ms.getParameterNames());
         }
-        if (newAnotherLock != null) {
-            LOGGER.info("AnotherLock exists. document [{}]", documentId);
-            ownLock.unlock();
-            tryLock(newAnotherLock, 0, documentId);
+        return extractor;
+    }
+
+    private long getTimeout() {
+        return configLockTimeout > 0 ? configLockTimeout : configTryCount * configTryTimeout;
+    }
+
+    private long getMaxHold(OnceThreadByDocument onceThreadByDocument) {
+        return onceThreadByDocument.maxHoldMillis() > 0 ? onceThreadByDocument.maxHoldMillis() : configMaxHold;
+    }
+
+    private static String getMethodName(MethodSignature signature) {
+        Method method = signature.getMethod();
+        return method.getDeclaringClass().getSimpleName() + "." + method.getName();
+    }
+
+    private int getFencingTokenIndex(Method method) {
+        Integer index = fencingTokenIndexes.get(method);
+        if (index == null) {
+            index = fencingTokenIndexes.computeIfAbsent(method, m -> {
+                Class<?>[] types = m.getParameterTypes();
+                for (int i = 0; i < types.length; i++) {
+                    if (types[i] == FencingToken.class) {
+                        return i;
+                    }
+                }
+                return -1;
+            });
         }
+        return index;
     }
 
-    /**
-     * Ожидание снятия текущей блокировки.
-     * Блокировка уже присутствует в Map, необходимо дождаться ее снятия или вылететь по таймауту
+    /*
+     * Аренда документа в кластере после локальной блокировки, ожидание в пределах оставшегося таймаута.
+     * Если у метода есть параметр FencingToken - подставляется выданный токен
      */
-    private void tryLock(ReentrantLock currentLock, int tryCount, long documentId) {
-        LOGGER.info("Try lock. document [{}] try [{}]", documentId, tryCount);
-        if (tryCount >= configTryCount) {
-            LOGGER.info("EXCEPTION: Cant lock. Current lock in map. document [{}] try [{}]", documentId, tryCount);
-            throw new DocumentLockException(documentId, tryCount);
+    private Object proceedLeased(ProceedingJoinPoint joinPoint, MethodSignature signature,
+                                 DocumentLockMetrics.MethodStats stats, long documentId, long deadline,
+                                 Object[] args) throws Throwable {
+        if (leaseManager == null) {
+            return args == null ? joinPoint.proceed() : joinPoint.proceed(args);
         }
+        long token = acquireLease(stats, documentId, deadline);
         try {
-            tryCount++;
-            if (currentLock == null) {
-                tryPutLock(null, documentId);
-            } else {
-                if (currentLock.tryLock(configTryTimeout, TimeUnit.MILLISECONDS)) {
-                    /*
-                     * блокировка освобождается после того, как она удалена из Map
-                     * 1. создаем свою блокировку и пытаемся добавить в Map
-                     * 2.а если возврщает Null - значит текущий поток поставил свою блокировку
-                     * 2.б если возвращает блокировку - значит другой поток смог установить блокировку
-                     * уходим в ожидание
-                     * 3. текущую блокировку можно опустить, она потеряла свой смысл
-                     */
-                    tryPutLock(currentLock, documentId);
-                } else {
-                    LOGGER.info("Cant lock. Current lock in map. TryLock is false. document [{}] try [{}]",
-                            documentId, tryCount);
-                    tryLock(currentLock, tryCount, documentId);
-                }
-            }
+            return proceedFenced(joinPoint, signature, documentId, token, args);
+        } finally {
+            leaseManager.release(documentId, token);
+        }
+    }
+
+    private long acquireLease(DocumentLockMetrics.MethodStats stats, long documentId, long deadline) {
+        long token;
+        try {
+            token = leaseManager.acquire(documentId, Math.max(0, deadline - System.currentTimeMillis()));
         } catch (InterruptedException e) {
-            LOGGER.info("InterruptedException: document [{}] try [{}]", documentId, tryCount);
-            throw new DocumentLockException(documentId, tryCount);
+            stats.interrupt();
+            LOGGER.info("InterruptedException: document lease [{}]", documentId);
+            Thread.currentThread().interrupt();
+            throw new DocumentLockException(documentId, 1);
+        }
+        if (token == 0) {
+            throw leaseTimeout(stats, documentId);
         }
+        return token;
     }
 
+    private DocumentLockException leaseTimeout(DocumentLockMetrics.MethodStats stats, long documentId) {
+        stats.timeout();
+        LOGGER.info("EXCEPTION: Cant lease. document [{}] node [{}]", documentId, leaseManager.getNodeId());
+        return new DocumentLockException(documentId, 1);
+    }
+
+    /*
+     * token 0 - аренды нет, FencingToken остается null.
+     * args - аргументы вместо аргументов вызова, null - аргументы вызова
+     */
+    private Object proceedFenced(ProceedingJoinPoint joinPoint, MethodSignature signature, long documentId,
+                                 long token, Object[] args) throws Throwable {
+        int fencingTokenIndex = token == 0 ? -1 : getFencingTokenIndex(signature.getMethod());
+        if (fencingTokenIndex < 0) {
+            return args == null ? joinPoint.proceed() : joinPoint.proceed(args);
+        }
+        Object[] fencedArgs = (args == null ? joinPoint.getArgs() : args).clone();
+        fencedArgs[fencingTokenIndex] = new FencingToken(documentId, token);
+        return joinPoint.proceed(fencedArgs);
+    }
 
     @Around("@annotation(onceThreadByDocument)")
     public Object lock(ProceedingJoinPoint joinPoint, OnceThreadByDocument onceThreadByDocument) throws Throwable {
-        LOGGER.info("DocumentNewAdvice lock start");
-
-        long documentId = getDocumentId(joinPoint, onceThreadByDocument);
+        MethodSignature signature = (MethodSignature) joinPoint.getSignature();
+        DocumentIdExtractor extractor = getExtractor(signature);
+        if (!(extractor instanceof DocumentIdExtractor.Single)) {
+            return lockAll(joinPoint, signature, onceThreadByDocument, extractor.extractAll(joinPoint.getArgs()));
+        }
+        long documentId = ((DocumentIdExtractor.Single) extractor).extract(joinPoint.getArgs());
         if (documentId == 0) {
-            LOGGER.info("No need lock new document. document [{}]", documentId);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("No need lock new document. method [{}]", signature.getMethod().getName());
+            }
             return joinPoint.proceed();
         }
-        tryPutLock(null, documentId);
-        LOGGER.info("Success lock document. document [{}]", documentId);
+        if (CompletionStage.class.isAssignableFrom(signature.getReturnType())) {
+            return lockAsync(joinPoint, signature, onceThreadByDocument, documentId);
+        }
+        DocumentLockMetrics.MethodStats stats = metrics.forMethod(signature.getMethod());
+        if (onceThreadByDocument.coalesce() && !lockManager.isHeldByCurrentThread(documentId)) {
+            return coalescer.execute(documentId, joinPoint.getTarget(), signature.getMethod(), joinPoint.getArgs(),
+                    getTimeout(), stats,
+                    latestArgs -> lock(joinPoint, signature, onceThreadByDocument, stats, documentId, latestArgs));
+        }
+        return lock(joinPoint, signature, onceThreadByDocument, stats, documentId, null);
+    }
+
+    /*
+     * Блокировка одного документа и вызов метода.
+     * latestArgs - аргументы объединенных вызовов, запрашиваются после захвата; null - аргументы самого вызова
+     */
+    private Object lock(ProceedingJoinPoint joinPoint, MethodSignature signature,
+                        OnceThreadByDocument onceThreadByDocument, DocumentLockMetrics.MethodStats stats,
+                        long documentId, Supplier<Object[]> latestArgs) throws Throwable {
+        long timeout = getTimeout();
+        long deadline = System.currentTimeMillis() + timeout;
+        long start = System.nanoTime();
+        boolean locked;
+        try {
+            locked = lockManager.lock(documentId, onceThreadByDocument.mode(), timeout);
+        } catch (InterruptedException e) {
+            stats.interrupt();
+            LOGGER.info("InterruptedException: document [{}]", documentId);
+            Thread.currentThread().interrupt();
+            throw new DocumentLockException(documentId, 1);
+        }
+        long lockedAt = System.nanoTime();
+        stats.waited(lockedAt - start);
+        if (!locked) {
+            if (lockManager.isStuck(documentId)) {
+                LOGGER.info("EXCEPTION: Cant lock, holder is stuck. document [{}]", documentId);
+            } else {
+                stats.timeout();
+                LOGGER.info("EXCEPTION: Cant lock. document [{}] timeout [{}]", documentId, timeout);
+            }
+            throw new DocumentLockException(documentId, 1);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Success lock document. document [{}] mode [{}]", documentId, onceThreadByDocument.mode());
+        }
 
+        long maxHold = getMaxHold(onceThreadByDocument);
+        DocumentLockManager.Hold hold = maxHold > 0
+                ? lockManager.watch(documentId, getMethodName(signature), maxHold, configMaxHoldFailWaiters)
+                : null;
         try {
+            Object[] args = latestArgs == null ? null : latestArgs.get();
+            return proceedLeased(joinPoint, signature, stats, documentId, deadline, args);
+        } finally {
+            if (hold != null) {
+                lockManager.unwatch(hold);
+            }
+            lockManager.unlock(documentId, onceThreadByDocument.mode());
+            stats.held(System.nanoTime() - lockedAt);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Success unlock. document [{}]", documentId);
+            }
+        }
+    }
+
+    /*
+     * Метод возвращает CompletableFuture/CompletionStage: документ освобождается, когда завершится результат.
+     * Свободный документ захватывается и метод вызывается в текущем потоке, иначе вызов ставится в очередь
+     * документа без ожидания потоком и выполняется в asyncExecutor после выдачи блокировки.
+     * Аренда в кластере тоже ожидается без потока, повторные попытки выполняются в asyncExecutor.
+     * Отказ в блокировке - результат, завершенный DocumentLockException, в том числе если текущий поток
+     * уже держит документ синхронно: асинхронный захват не реентерабелен, см. {@link DocumentLockManager#lockAsync}
+     */
+    private CompletableFuture<Object> lockAsync(ProceedingJoinPoint joinPoint, MethodSignature signature,
+                                                OnceThreadByDocument onceThreadByDocument, long documentId) {
+        DocumentLockMetrics.MethodStats stats = metrics.forMethod(signature.getMethod());
+        OnceThreadByDocument.Mode mode = onceThreadByDocument.mode();
+        long timeout = getTimeout();
+        long deadline = System.currentTimeMillis() + timeout;
+        long start = System.nanoTime();
+        if (lockManager.isHeldByCurrentThread(documentId)) {
+            LOGGER.info("EXCEPTION: Cant lock async, document is locked by current thread. document [{}]", documentId);
+            return failed(new DocumentLockException(documentId, 1));
+        }
+        CompletableFuture<Boolean> locked = lockManager.lockAsync(documentId, mode, timeout);
+        Function<Boolean, CompletableFuture<Object>> proceed = granted -> {
+            long lockedAt = System.nanoTime();
+            stats.waited(lockedAt - start);
+            if (!granted) {
+                if (lockManager.isStuck(documentId)) {
+                    LOGGER.info("EXCEPTION: Cant lock, holder is stuck. document [{}]", documentId);
+                } else {
+                    stats.timeout();
+                    LOGGER.info("EXCEPTION: Cant lock. document [{}] timeout [{}]", documentId, timeout);
+                }
+                return failed(new DocumentLockException(documentId, 1));
+            }
+            long maxHold = getMaxHold(onceThreadByDocument);
+            DocumentLockManager.Hold hold = maxHold > 0
+                    ? lockManager.watchAsync(documentId, getMethodName(signature), maxHold, configMaxHoldFailWaiters)
+                    : null;
+            CompletableFuture<Long> leased = leaseManager == null
+                    ? CompletableFuture.completedFuture(0L)
+                    : leaseManager.acquireAsync(documentId, Math.max(0, deadline - System.currentTimeMillis()),
+                    asyncExecutor);
+            CompletableFuture<Object> result = leased.thenCompose(token -> {
+                if (leaseManager != null && token == 0) {
+                    return failed(leaseTimeout(stats, documentId));
+                }
+                CompletableFuture<Object> proceeded;
+                try {
+                    proceeded = toFuture(proceedFenced(joinPoint, signature, documentId, token, null));
+                } catch (Throwable e) {
+                    proceeded = failed(e);
+                }
+                return token == 0 ? proceeded
+                        : proceeded.whenComplete((value, error) -> leaseManager.release(documentId, token));
+            });
+            return result.whenComplete((value, error) -> {
+                if (hold != null) {
+                    lockManager.unwatch(hold);
+                }
+                lockManager.unlockAsync(documentId, mode);
+                stats.held(System.nanoTime() - lockedAt);
+            });
+        };
+        return locked.isDone() ? proceed.apply(locked.join()) : locked.thenComposeAsync(proceed, asyncExecutor);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CompletableFuture<Object> toFuture(Object result) {
+        return result == null
+                ? CompletableFuture.completedFuture(null)
+                : ((CompletionStage<Object>) result).toCompletableFuture();
+    }
+
+    private static CompletableFuture<Object> failed(Throwable error) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        result.completeExceptionally(error);
+        return result;
+    }
+
+    /*
+     * Блокировка нескольких документов сразу, см. {@link DocumentLockManager#lockAll}
+     */
+    private Object lockAll(ProceedingJoinPoint joinPoint, MethodSignature signature,
+                           OnceThreadByDocument onceThreadByDocument, long[] documentIds) throws Throwable {
+        if (documentIds.length == 0) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("No need lock new documents. method [{}]", signature.getMethod().getName());
+            }
+            return joinPoint.proceed();
+        }
+        DocumentLockMetrics.MethodStats stats = metrics.forMethod(signature.getMethod());
+        long timeout = getTimeout();
+        long deadline = System.currentTimeMillis() + timeout;
+        long start = System.nanoTime();
+        int failed;
+        try {
+            failed = lockManager.lockAll(documentIds, onceThreadByDocument.mode(), timeout);
+        } catch (InterruptedException e) {
+            stats.interrupt();
+            LOGGER.info("InterruptedException: documents [{}]", Arrays.toString(documentIds));
+            Thread.currentThread().interrupt();
+            throw new DocumentLockException(documentIds[0], 1);
+        }
+        long lockedAt = System.nanoTime();
+        stats.waited(lockedAt - start);
+        if (failed >= 0) {
+            long documentId = documentIds[failed];
+            if (lockManager.isStuck(documentId)) {
+                LOGGER.info("EXCEPTION: Cant lock, holder is stuck. document [{}]", documentId);
+            } else {
+                stats.timeout();
+                LOGGER.info("EXCEPTION: Cant lock. document [{}] of [{}] timeout [{}]",
+                        documentId, Arrays.toString(documentIds), timeout);
+            }
+            throw new DocumentLockException(documentId, 1);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Success lock documents. documents [{}] mode [{}]",
+                    Arrays.toString(documentIds), onceThreadByDocument.mode());
+        }
+
+        long maxHold = getMaxHold(onceThreadByDocument);
+        DocumentLockManager.Hold[] holds = null;
+        if (maxHold > 0) {
+            String methodName = getMethodName(signature);
+            holds = new DocumentLockManager.Hold[documentIds.length];
+            for (int i = 0; i < documentIds.length; i++) {
+                holds[i] = lockManager.watch(documentIds[i], methodName, maxHold, configMaxHoldFailWaiters);
+            }
+        }
+        try {
+            return proceedLeasedAll(joinPoint, stats, documentIds, deadline);
+        } finally {
+            if (holds != null) {
+                for (DocumentLockManager.Hold hold : holds) {
+                    lockManager.unwatch(hold);
+                }
+            }
+            lockManager.unlockAll(documentIds, onceThreadByDocument.mode());
+            stats.held(System.nanoTime() - lockedAt);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Success unlock. documents [{}]", Arrays.toString(documentIds));
+            }
+        }
+    }
+
+    /*
+     * Аренда нескольких документов в том же порядке, что и локальные блокировки, отказ - освобождение всех
+     */
+    private Object proceedLeasedAll(ProceedingJoinPoint joinPoint, DocumentLockMetrics.MethodStats stats,
+                                    long[] documentIds, long deadline) throws Throwable {
+        if (leaseManager == null) {
+            return joinPoint.proceed();
+        }
+        long[] tokens = new long[documentIds.length];
+        int leased = 0;
+        try {
+            for (; leased < documentIds.length; leased++) {
+                tokens[leased] = acquireLease(stats, documentIds[leased], deadline);
+            }
             return joinPoint.proceed();
         } finally {
-            ReentrantLock lock = lockMap.remove(documentId);
-            lock.unlock();
-            LOGGER.info("Success unlock. document [{}]", documentId);
+            for (int i = leased - 1; i >= 0; i--) {
+                leaseManager.release(documentIds[i], tokens[i]);
+            }
         }
     }
 
+    /**
+     * Снимок телеметрии блокировок документов
+     *
+     * @param hotCount сколько самых конфликтных документов вернуть
+     */
+    public DocumentLockMetrics.Snapshot getMetrics(int hotCount) {
+        return metrics.snapshot(lockManager.size(), hotCount);
+    }
+
 
 }
\ No newline at end of file
@@ -0,0 +1,120 @@
+package advice;
+
+import ru.systemres.vsrf.lk.exception.DocumentLockException;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+
+/**
+ * Объединение одновременных сохранений документа, {@link OnceThreadByDocument#coalesce()}.
+ * Первый вызов пакета (исполнитель) ждет блокировку документа, следующие вызовы того же метода того же бина
+ * присоединяются к пакету и заменяют аргументы своими. Получив блокировку, исполнитель закрывает пакет
+ * и выполняет метод один раз с аргументами последнего вызова, результат или исключение получают все
+ * вызовы пакета. Вызовы, пришедшие после закрытия, собираются в следующий пакет за текущим держателем.
+ * Годится только для методов, которые целиком заменяют состояние документа.
+ */
+class DocumentWriteCoalescer {
+
+    @FunctionalInterface
+    interface Execution {
+        /**
+         * @param latestArgs вызывается после захвата блокировки, закрывает пакет и возвращает аргументы
+         *                   последнего вызова
+         */
+        Object run(Supplier<Object[]> latestArgs) throws Throwable;
+    }
+
+    private static final class Batch {
+        private final Object target;
+        private final Method method;
+        // изменяются только внутри compute карты batches
+        private Object[] args;
+        // исполнитель получил блокировку (или отказ), дальше ждем только выполнения
+        private final CompletableFuture<Void> started = new CompletableFuture<>();
+        private final CompletableFuture<Object> outcome = new CompletableFuture<>();
+
+        private Batch(Object target, Method method, Object[] args) {
+            this.target = target;
+            this.method = method;
+            this.args = args;
+        }
+    }
+
+    private final ConcurrentMap<Long, Batch> batches = new ConcurrentHashMap<>();
+
+    /**
+     * Поток, который уже держит документ, не объединяется: исполнитель пакета ждал бы блокировку,
+     * которую держит этот поток, - такой вызов выполняется сразу, как вложенный.
+     *
+     * @param timeoutMillis сколько присоединившийся вызов ждет захвата блокировки исполнителем,
+     *                      как и собственного захвата; выполнение метода ждет без ограничения
+     * @param stats         учет вызовов, объединенных с другими
+     */
+    Object execute(long documentId, Object target, Method method, Object[] args, long timeoutMillis,
+                   DocumentLockMetrics.MethodStats stats, Execution execution) throws Throwable {
+        Batch[] joined = new Batch[1];
+        Batch batch = batches.compute(documentId, (id, current) -> {
+            if (current == null) {
+                return new Batch(target, method, args);
+            }
+            if (current.target == target && current.method.equals(method)) {
+                current.args = args;
+                joined[0] = current;
+            }
+            return current;
+        });
+        if (joined[0] != null) {
+            stats.coalesced();
+            return await(documentId, batch, timeoutMillis);
+        }
+        if (batch.target != target || !batch.method.equals(method)) {
+            // пакет другого метода по тому же документу, выполняемся отдельно
+            return execution.run(() -> args);
+        }
+
+        Object result;
+        try {
+            result = execution.run(() -> {
+                batches.remove(documentId, batch);
+                batch.started.complete(null);
+                return batch.args;
+            });
+        } catch (Throwable e) {
+            batches.remove(documentId, batch);
+            batch.started.complete(null);
+            batch.outcome.completeExceptionally(e);
+            throw e;
+        }
+        batches.remove(documentId, batch);
+        batch.started.complete(null);
+        batch.outcome.complete(result);
+        return result;
+    }
+
+    private static Object await(long documentId, Batch batch, long timeoutMillis) throws Throwable {
+        try {
+            batch.started.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return batch.outcome.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } catch (TimeoutException e) {
+            throw new DocumentLockException(documentId, 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocumentLockException(documentId, 1);
+        }
+    }
+
+    // Количество документов с открытым пакетом
+    int size() {
+        return batches.size();
+    }
+
+}
@@ -0,0 +1,106 @@
+package advice;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Гистограмма длительностей в наносекундах с корзинами по степеням двойки: корзина i - значения [2^(i-1), 2^i).
+ * Процентиль отдается верхней границей корзины (ошибка до 2 раз), для ожидания блокировки
+ * и времени удержания этого хватает - важен порядок величины.
+ * Запись без блокировок и без выделения памяти, значения накапливаются с момента создания.
+ */
+public class DurationHistogram {
+
+    private static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+        total.addAndGet(nanos);
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+            currentMax = max.get();
+        }
+    }
+
+    public Summary summary() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        long maxValue = max.get();
+        return new Summary(count, count == 0 ? 0 : total.get() / count,
+                percentile(snapshot, count, 0.5, maxValue),
+                percentile(snapshot, count, 0.99, maxValue),
+                maxValue);
+    }
+
+    private static long percentile(long[] snapshot, long count, double quantile, long maxValue) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * quantile));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    /**
+     * Длительности в наносекундах на момент снятия
+     */
+    public static final class Summary {
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p99;
+        private final long max;
+
+        private Summary(long count, long mean, long p50, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + mean + " p50=" + p50 + " p99=" + p99 + " max=" + max;
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+package advice;
+
+
+/**
+ * Номер владения блокировкой документа в кластере, растет при каждой смене узла-владельца.
+ * Передается в метод с {@link OnceThreadByDocument}, если у метода есть аргумент этого типа
+ * (вызывающий передает null, значение подставляет {@link DocumentNewAdvice}; без {@link DocumentLeaseStore} остается null).
+ * Хранилище документа должно отклонять запись с токеном меньше уже записанного:
+ * так запись узла, который потерял аренду (долгая пауза GC, обрыв сети), не затрет запись нового владельца.
+ */
+public final class FencingToken {
+
+    private final long documentId;
+    private final long token;
+
+    public FencingToken(long documentId, long token) {
+        this.documentId = documentId;
+        this.token = token;
+    }
+
+    public long getDocumentId() {
+        return documentId;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    @Override
+    public String toString() {
+        return "FencingToken{" +
+                "documentId=" + documentId +
+                ", token=" + token +
+                '}';
+    }
+}
@@ -0,0 +1,63 @@
+package advice;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Хранилище аренды в памяти одной JVM. Узлы кластера моделируются несколькими
+ * {@link DocumentLeaseManager} с разными nodeId над одним экземпляром хранилища.
+ */
+public class InProcessDocumentLeaseStore implements DocumentLeaseStore {
+
+    private static final class Lease {
+        private final String owner;
+        private final long token;
+        private long expireTime;
+
+        private Lease(String owner, long token, long expireTime) {
+            this.owner = owner;
+            this.token = token;
+            this.expireTime = expireTime;
+        }
+    }
+
+    private final Map<Long, Lease> leases = new HashMap<>();
+    private long lastToken;
+
+    @Override
+    public synchronized long tryAcquire(long documentId, String owner, long leaseMillis) {
+        long now = System.currentTimeMillis();
+        Lease lease = leases.get(documentId);
+        if (lease != null && lease.expireTime > now && !lease.owner.equals(owner)) {
+            return 0;
+        }
+        if (lease != null && lease.expireTime > now) {
+            lease.expireTime = now + leaseMillis;
+            return lease.token;
+        }
+        lease = new Lease(owner, ++lastToken, now + leaseMillis);
+        leases.put(documentId, lease);
+        return lease.token;
+    }
+
+    @Override
+    public synchronized boolean renew(long documentId, String owner, long token, long leaseMillis) {
+        long now = System.currentTimeMillis();
+        Lease lease = leases.get(documentId);
+        if (lease == null || lease.token != token || lease.expireTime <= now) {
+            return false;
+        }
+        lease.expireTime = now + leaseMillis;
+        return true;
+    }
+
+    @Override
+    public synchronized void release(long documentId, String owner, long token) {
+        Lease lease = leases.get(documentId);
+        if (lease != null && lease.token == token) {
+            leases.remove(documentId);
+        }
+    }
+
+}
@@ -1,7 +1,5 @@
 package advice;
 
-import org.aspectj.lang.JoinPoint;
-
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -13,10 +11,38 @@ import java.lang.annotation.Target;
  * id документа берется из сигнатуры метода.
  * в name следует указать имя аргумента который является Id довумента
  * или объект который содержит id документа.
- * {@link DocumentNewAdvice#getDocumentId(JoinPoint, OnceThreadByDocument)}}
+ * {@link DocumentIdExtractor}, аннотации проверяются при старте {@link OnceThreadByDocumentValidator}
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.METHOD)
 public @interface OnceThreadByDocument {
-    String name() default "document";
+    /**
+     * Имена аргументов с документом. Несколько имен или аргумент-коллекция (массив) id или DocumentBase -
+     * блокируются все документы сразу, см. {@link DocumentLockManager#lockAll}
+     */
+    String[] name() default "document";
+
+    /**
+     * Режим блокировки. SHARED - для чтения, такие вызовы по одному документу выполняются параллельно,
+     * но не одновременно с EXCLUSIVE. Ожидающий EXCLUSIVE пропускается вперед новых SHARED.
+     */
+    Mode mode() default Mode.EXCLUSIVE;
+
+    /**
+     * Максимальное время удержания документа, мс. Дольше - держатель считается зависшим,
+     * см. {@link DocumentLockManager.Hold}. 0 - значение document.lock.max.hold (по умолчанию без ограничения)
+     */
+    long maxHoldMillis() default 0;
+
+    /**
+     * Объединять вызовы, ожидающие документ: выполняется только последний, остальные получают его результат,
+     * см. {@link DocumentWriteCoalescer}. Только для EXCLUSIVE методов одного документа,
+     * которые целиком заменяют его состояние (сохранение документа целиком)
+     */
+    boolean coalesce() default false;
+
+    enum Mode {
+        SHARED,
+        EXCLUSIVE
+    }
 }
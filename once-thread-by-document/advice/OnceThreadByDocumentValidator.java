@@ -0,0 +1,42 @@
+package advice;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.Method;
+
+
+/**
+ * Проверка аннотаций {@link OnceThreadByDocument} при создании бинов.
+ * Для каждого аннотированного метода заранее строится {@link DocumentIdExtractor},
+ * ошибка в аннотации останавливает запуск приложения, а не первый вызов метода.
+ */
+public class OnceThreadByDocumentValidator implements BeanPostProcessor {
+
+    private final ParameterNameDiscoverer parameterNameDiscoverer = new DefaultParameterNameDiscoverer();
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        Class<?> beanClass = ClassUtils.getUserClass(bean.getClass());
+        for (Method method : beanClass.getDeclaredMethods()) {
+            if (method.isAnnotationPresent(OnceThreadByDocument.class)) {
+                try {
+                    DocumentIdExtractor.of(method, parameterNameDiscoverer.getParameterNames(method));
+                } catch (IllegalStateException e) {
+                    throw new BeanInitializationException("Invalid @OnceThreadByDocument. bean [" + beanName + "]", e);
+                }
+            }
+        }
+        return bean;
+    }
+
+}
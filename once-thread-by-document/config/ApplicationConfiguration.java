@@ -68,5 +68,10 @@ public class ApplicationConfiguration {
         return Aspects.aspectOf(DocumentNewAdvice.class);
     }
 
+    @Bean
+    public static OnceThreadByDocumentValidator onceThreadByDocumentValidator() {
+        return new OnceThreadByDocumentValidator();
+    }
+
 
 }
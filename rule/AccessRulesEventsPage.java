@@ -0,0 +1,112 @@
+package ru.olekstra.common.service;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import ru.olekstra.domain.AccessRulesEvents;
+
+
+/*
+ * Страница журнала AccessRulesEvents. nextCursor - курсор следующей страницы, null - страница последняя.
+ * Формат курсора определяет репозиторий, для вызывающего это непрозрачная строка.
+ * В of() курсор - "время:номер": время rangeKey последней записи страницы в миллисекундах
+ * и сколько записей с этим временем уже отдано (записи разных узлов могут совпасть по времени).
+ */
+public class AccessRulesEventsPage<T> {
+
+    private final List<T> items;
+    private final String nextCursor;
+
+    public AccessRulesEventsPage(List<T> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /*
+     * Страница с преобразованием записей при обращении к ним, без промежуточного списка
+     */
+    public <R> AccessRulesEventsPage<R> map(Function<? super T, ? extends R> mapper) {
+        List<R> mapped = new AbstractList<R>() {
+            @Override
+            public R get(int index) {
+                return mapper.apply(items.get(index));
+            }
+
+            @Override
+            public int size() {
+                return items.size();
+            }
+        };
+        return new AccessRulesEventsPage<>(mapped, nextCursor);
+    }
+
+    /**
+     * Страница из отсортированного по rangeKey журнала периода, записи строго после курсора.
+     * Номер больше числа записей с временем курсора не ошибка (записи могли истечь), страница начинается
+     * со следующего времени
+     *
+     * @throws IllegalArgumentException курсор не в формате "время:номер" или "время", время или номер
+     *                                  отрицательные или вне диапазона
+     */
+    static AccessRulesEventsPage<AccessRulesEvents> of(List<AccessRulesEvents> sorted, String cursor, int pageSize) {
+        int from = 0;
+        if (cursor != null) {
+            int separator = cursor.indexOf(':');
+            long after;
+            int skip;
+            try {
+                after = Long.parseLong(separator < 0 ? cursor : cursor.substring(0, separator));
+                skip = separator < 0 ? -1 : Integer.parseInt(cursor.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor [" + cursor + "]", e);
+            }
+            if (after < 0 || after == Long.MAX_VALUE || separator >= 0 && skip < 0) {
+                throw new IllegalArgumentException("Invalid cursor [" + cursor + "]");
+            }
+            int end = lowerBound(sorted, after + 1);
+            // курсор без номера (старый формат) - пропустить все записи с этим временем
+            from = skip < 0 ? end : (int) Math.min(end, (long) lowerBound(sorted, after) + skip);
+        }
+        int to = Math.min(sorted.size(), from + pageSize);
+        if (from >= to) {
+            return new AccessRulesEventsPage<>(Collections.<AccessRulesEvents>emptyList(), null);
+        }
+        // копия, чтобы страница (например в кэше) не удерживала весь журнал периода
+        List<AccessRulesEvents> items = new ArrayList<>(sorted.subList(from, to));
+        String nextCursor = to < sorted.size() ? cursorOf(sorted, to) : null;
+        return new AccessRulesEventsPage<>(items, nextCursor);
+    }
+
+    // Курсор после первых end записей журнала
+    private static String cursorOf(List<AccessRulesEvents> sorted, int end) {
+        long millis = sorted.get(end - 1).getRangeKey().getMillis();
+        return millis + ":" + (end - lowerBound(sorted, millis));
+    }
+
+    // Индекс первой записи со временем не раньше millis
+    private static int lowerBound(List<AccessRulesEvents> sorted, long millis) {
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted.get(middle).getRangeKey().getMillis() < millis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+}
@@ -0,0 +1,22 @@
+package ru.olekstra.common.service;
+
+import java.io.IOException;
+
+import ru.olekstra.domain.AccessRulesEvents;
+
+
+/*
+ * Постраничное чтение журнала AccessRulesEvents за период (yyyyMM), записи по возрастанию rangeKey.
+ * В приложении - запрос DynamoDB с Limit = pageSize и ExclusiveStartKey из курсора,
+ * в тестах - InMemoryAccessRulesEventsRepository
+ */
+public interface AccessRulesEventsRepository {
+
+    /**
+     * @param cursor курсор из предыдущей страницы, null - первая страница
+     * @throws IllegalArgumentException cursor не является курсором этого репозитория
+     */
+    AccessRulesEventsPage<AccessRulesEvents> query(String period, String cursor, int pageSize)
+            throws IOException;
+
+}
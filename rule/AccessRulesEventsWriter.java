@@ -0,0 +1,196 @@
+package ru.olekstra.common.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.olekstra.awsutils.exception.ItemSizeLimitExceededException;
+import ru.olekstra.domain.AccessRulesEvents;
+
+
+/*
+ * Асинхронная запись журнала AccessRulesEvents.
+ * События складываются в ограниченную очередь, фоновый поток забирает их пачками
+ * (не больше flushSize, не дольше flushIntervalMillis ожидания) и передает в Sink одной записью.
+ * Поведение при переполнении очереди задается OverflowPolicy.
+ * До start() и после stop() события записываются синхронно в потоке вызова.
+ */
+public class AccessRulesEventsWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccessRulesEventsWriter.class);
+
+    /*
+     * Получатель пачки событий. В приложении - DynamodbService, в тестах - локальная заглушка.
+     * Возвращает количество незаписанных событий пачки, исключение - не записана вся пачка
+     */
+    public interface Sink {
+        int write(List<AccessRulesEvents> batch) throws ItemSizeLimitExceededException;
+    }
+
+    public enum OverflowPolicy {
+        // новое событие отбрасывается
+        DROP_NEWEST,
+        // из очереди вытесняется самое старое событие
+        DROP_OLDEST,
+        // событие записывается синхронно в потоке вызова, нагрузка возвращается вызывающему
+        CALLER_RUNS
+    }
+
+    private final Sink sink;
+    private final BlockingQueue<AccessRulesEvents> queue;
+    private final int flushSize;
+    private final long flushIntervalMillis;
+    private final OverflowPolicy overflowPolicy;
+
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong flushedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private final Thread writerThread;
+    private volatile boolean running;
+
+    public AccessRulesEventsWriter(Sink sink, int capacity, int flushSize, long flushIntervalMillis,
+                                   OverflowPolicy overflowPolicy) {
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.flushSize = flushSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.overflowPolicy = overflowPolicy;
+        this.writerThread = new Thread(this::run, "access-rules-events-writer");
+        this.writerThread.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        writerThread.start();
+    }
+
+    /*
+     * Останавливает фоновый поток, события оставшиеся в очереди записываются перед выходом
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        writerThread.interrupt();
+        writerThread.join();
+        // события, добавленные в очередь одновременно с остановкой потока
+        List<AccessRulesEvents> batch = new ArrayList<>(flushSize);
+        while (queue.drainTo(batch, flushSize) > 0) {
+            flush(batch);
+        }
+    }
+
+    public void submit(AccessRulesEvents event) throws ItemSizeLimitExceededException {
+        if (!running) {
+            writeNow(event);
+            return;
+        }
+        if (queue.offer(event)) {
+            queuedCount.incrementAndGet();
+            // поток записи мог завершиться между проверкой и offer, тогда событие пишет либо stop(), либо вызывающий
+            if (!running && queue.remove(event)) {
+                writeNow(event);
+            }
+            return;
+        }
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                if (queue.poll() != null) {
+                    droppedCount.incrementAndGet();
+                }
+                if (queue.offer(event)) {
+                    queuedCount.incrementAndGet();
+                } else {
+                    droppedCount.incrementAndGet();
+                }
+                break;
+            case CALLER_RUNS:
+                writeNow(event);
+                break;
+            default:
+                droppedCount.incrementAndGet();
+        }
+    }
+
+    private void run() {
+        List<AccessRulesEvents> batch = new ArrayList<>(flushSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                AccessRulesEvents first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+                while (batch.size() < flushSize) {
+                    queue.drainTo(batch, flushSize - batch.size());
+                    long wait = deadline - System.nanoTime();
+                    if (batch.size() >= flushSize || wait <= 0) {
+                        break;
+                    }
+                    AccessRulesEvents next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // остановка, дописываем накопленное и оставшееся в очереди
+                queue.drainTo(batch, flushSize - batch.size());
+            }
+            flush(batch);
+        }
+    }
+
+    private void writeNow(AccessRulesEvents event) throws ItemSizeLimitExceededException {
+        int failed = sink.write(Collections.singletonList(event));
+        if (failed > 0) {
+            failedCount.incrementAndGet();
+        } else {
+            flushedCount.incrementAndGet();
+        }
+    }
+
+    private void flush(List<AccessRulesEvents> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            int failed = sink.write(batch);
+            flushedCount.addAndGet(batch.size() - failed);
+            failedCount.addAndGet(failed);
+        } catch (Exception e) {
+            failedCount.addAndGet(batch.size());
+            LOGGER.error("Cant write AccessRulesEvents batch. size [{}]", batch.size(), e);
+        }
+        batch.clear();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    public long getFlushedCount() {
+        return flushedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,59 @@
+package ru.olekstra.common.rules;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+/*
+ * Счетный фильтр Блума заблокированных IP.
+ * Ответ "нет" точный - IP не заблокирован, и проверка isBlocked обходится без блокировки сегмента.
+ * Ответ "возможно" требует проверки по таблице сегмента.
+ * Счетчики вместо битов позволяют убирать IP из фильтра при снятии блокировки.
+ */
+class BlockedIpFilter {
+
+    private static final int HASH_COUNT = 3;
+
+    private final AtomicIntegerArray counters;
+    private final int mask;
+
+    /**
+     * @param size количество счетчиков, степень двойки
+     */
+    BlockedIpFilter(int size) {
+        this.counters = new AtomicIntegerArray(size);
+        this.mask = size - 1;
+    }
+
+    private static int secondHash(long high, long low) {
+        long h = (low ^ Long.rotateLeft(high, 17)) * 0xFF51AFD7ED558CCDL;
+        return (int) (h ^ (h >>> 33)) | 1;
+    }
+
+    void add(long high, long low) {
+        int hash = IpAddress.hash(high, low);
+        int step = secondHash(high, low);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            counters.incrementAndGet((hash + i * step) & mask);
+        }
+    }
+
+    void remove(long high, long low) {
+        int hash = IpAddress.hash(high, low);
+        int step = secondHash(high, low);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            counters.decrementAndGet((hash + i * step) & mask);
+        }
+    }
+
+    boolean mightContain(long high, long low) {
+        int hash = IpAddress.hash(high, low);
+        int step = secondHash(high, low);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            if (counters.get((hash + i * step) & mask) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,288 @@
+package ru.olekstra.common.rules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/*
+ * Состояние правил, согласованное между узлами кластера.
+ * Каждый узел держит полную копию блокировок в LocalRuleEventStore (near cache) и отвечает на isBlocked
+ * без обращения к другим узлам. Блокировки и сбросы публикуются сразу, счетчики событий накапливаются
+ * и отправляются пачкой в synchronize(). События других узлов хранятся в отдельном хранилище
+ * в режиме скользящего окна и добавляются к локальному количеству при проверке лимитов правила.
+ * Время жизни событий другого узла отсчитывается от момента получения, т.е. с опозданием
+ * не больше интервала синхронизации.
+ * Снятие блокировки, полученной от другого узла, не возвращается из tryReleaseBlock / sweep как RELEASED:
+ * запись UNBLOCK в журнал и счетчик пишет только узел, который заблокировал IP (и записал BLOCK).
+ */
+public class ClusterRuleEventStore implements RuleEventStore {
+
+    /*
+     * Счетчик событий правила для IP с последней синхронизации.
+     * -1 - счетчик снят synchronize() или eventReset и удален из карты, событие нужно записать в новый
+     */
+    private static final class PendingEvents extends AtomicInteger {
+        private final long eventLifeMillis;
+        private final int capacity;
+
+        private PendingEvents(long eventLifeMillis, int capacity) {
+            this.eventLifeMillis = eventLifeMillis;
+            this.capacity = capacity;
+        }
+
+        private boolean increment() {
+            for (;;) {
+                int count = get();
+                if (count < 0) {
+                    return false;
+                }
+                if (compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /*
+         * Забирает накопленное количество. Счетчик без событий с прошлой синхронизации снимается,
+         * тогда возвращается -1 и его нужно удалить из карты
+         */
+        private int drain() {
+            for (;;) {
+                int count = get();
+                if (count < 0) {
+                    return 0;
+                }
+                if (compareAndSet(count, count == 0 ? -1 : 0)) {
+                    return count == 0 ? -1 : count;
+                }
+            }
+        }
+    }
+
+    private final String nodeId;
+    private final LocalRuleEventStore local;
+    private final LocalRuleEventStore remote;
+    private final RuleClusterTransport transport;
+
+    /* События этого узла, накопленные с последней синхронизации: имя правила -> IP -> счетчик.
+     * Без общей блокировки, чтобы кластерный узел не терял параллелизм сегментов LocalRuleEventStore
+     */
+    private final ConcurrentMap<String, ConcurrentMap<IpAddress, PendingEvents>> pendingEvents =
+            new ConcurrentHashMap<>();
+
+    // Блокировки, которые пришли от других узлов и не были заблокированы этим узлом
+    private final Set<IpAddress> replicatedIp = ConcurrentHashMap.newKeySet();
+    private final Set<IpPrefix> replicatedPrefixes = ConcurrentHashMap.newKeySet();
+
+    public ClusterRuleEventStore(String nodeId, LocalRuleEventStore local, RuleClusterTransport transport) {
+        this.nodeId = nodeId;
+        this.local = local;
+        this.remote = new LocalRuleEventStore(true, null, local.getClock());
+        this.transport = transport;
+        transport.subscribe(this::receive);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Отправка накопленных событий другим узлам одной пачкой. Вызывается периодически
+     */
+    public void synchronize() {
+        List<RuleClusterMessage> batch = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentMap<IpAddress, PendingEvents>> rule : pendingEvents.entrySet()) {
+            ConcurrentMap<IpAddress, PendingEvents> byIp = rule.getValue();
+            for (Map.Entry<IpAddress, PendingEvents> entry : byIp.entrySet()) {
+                PendingEvents pending = entry.getValue();
+                int count = pending.drain();
+                if (count > 0) {
+                    batch.add(RuleClusterMessage.events(nodeId, entry.getKey(), rule.getKey(), count,
+                            pending.eventLifeMillis, pending.capacity));
+                } else if (count < 0) {
+                    byIp.remove(entry.getKey(), pending);
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            transport.publish(batch);
+        }
+    }
+
+    private void pendingAdd(IpAddress ip, OlekstraRule rule) {
+        ConcurrentMap<IpAddress, PendingEvents> byIp = pendingEvents.get(rule.getName());
+        if (byIp == null) {
+            byIp = pendingEvents.computeIfAbsent(rule.getName(), name -> new ConcurrentHashMap<>());
+        }
+        for (;;) {
+            PendingEvents pending = byIp.get(ip);
+            if (pending == null) {
+                pending = new PendingEvents(rule.getEventLifeMillis(), RuleEventWindow.capacityOf(rule));
+                PendingEvents previous = byIp.putIfAbsent(ip, pending);
+                if (previous != null) {
+                    pending = previous;
+                }
+            }
+            if (pending.increment()) {
+                return;
+            }
+            // счетчик снят одновременно с нами
+            byIp.remove(ip, pending);
+        }
+    }
+
+    private void receive(List<RuleClusterMessage> batch) {
+        for (RuleClusterMessage message : batch) {
+            if (nodeId.equals(message.getNodeId())) {
+                continue;
+            }
+            switch (message.getType()) {
+                case EVENTS:
+                    remote.windowEventAdd(message.getIp(), message.getRuleName(), message.getEventLifeMillis(),
+                            message.getCapacity(), message.getCount());
+                    break;
+                case BLOCK:
+                    if (local.blockReplica(message.getIp(), message.getBlockItem())) {
+                        replicatedIp.add(message.getIp());
+                    }
+                    remote.eventReset(message.getRuleName(), message.getIp());
+                    break;
+                case BLOCK_PREFIX:
+                    if (local.blockPrefixReplica(message.getPrefix(), message.getBlockItem())) {
+                        replicatedPrefixes.add(message.getPrefix());
+                    }
+                    break;
+                case RESET:
+                    local.eventReset(message.getRuleName(), message.getIp());
+                    remote.eventReset(message.getRuleName(), message.getIp());
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void publish(RuleClusterMessage message) {
+        transport.publish(Collections.singletonList(message));
+    }
+
+    @Override
+    public int block(IpAddress ip, BlockItem blockItem) {
+        int blockedInSubnet = local.block(ip, blockItem);
+        replicatedIp.remove(ip);
+        // счетчики других узлов по этому правилу больше не нужны, после снятия блокировки отсчет начнется заново
+        remote.eventReset(blockItem.getRuleName(), ip);
+        publish(RuleClusterMessage.block(nodeId, ip, blockItem));
+        return blockedInSubnet;
+    }
+
+    @Override
+    public BlockedIpState tryReleaseBlock(IpAddress ip) {
+        BlockedIpState state = local.tryReleaseBlock(ip);
+        if (state == BlockedIpState.RELEASED && replicatedIp.remove(ip)) {
+            return BlockedIpState.UNBLOCKED;
+        }
+        return state;
+    }
+
+    @Override
+    public void blockPrefix(IpPrefix prefix, BlockItem blockItem) {
+        local.blockPrefix(prefix, blockItem);
+        replicatedPrefixes.remove(prefix);
+        publish(RuleClusterMessage.blockPrefix(nodeId, prefix, blockItem));
+    }
+
+    @Override
+    public boolean isPrefixBlocked(IpAddress ip) {
+        return local.isPrefixBlocked(ip);
+    }
+
+    @Override
+    public void eventReset(String ruleName, IpAddress ip) {
+        local.eventReset(ruleName, ip);
+        remote.eventReset(ruleName, ip);
+        ConcurrentMap<IpAddress, PendingEvents> byIp = pendingEvents.get(ruleName);
+        if (byIp != null) {
+            PendingEvents pending = byIp.remove(ip);
+            if (pending != null) {
+                pending.set(-1);
+            }
+        }
+        publish(RuleClusterMessage.reset(nodeId, ip, ruleName));
+    }
+
+    @Override
+    public RuleEventList getRuleEventsData(String ruleName, IpAddress ip) {
+        return local.getRuleEventsData(ruleName, ip);
+    }
+
+    @Override
+    public boolean hasEvents(String ruleName, IpAddress ip) {
+        return local.hasEvents(ruleName, ip);
+    }
+
+    @Override
+    public int eventAdd(IpAddress ip, OlekstraRule rule) {
+        int eventSize = local.eventAdd(ip, rule);
+        pendingAdd(ip, rule);
+        return eventSize + remote.windowEventCount(ip, rule.getName());
+    }
+
+    @Override
+    public int[] eventAddAll(IpAddress ip, List<OlekstraRule> rules) {
+        int[] eventSizes = local.eventAddAll(ip, rules);
+        for (OlekstraRule rule : rules) {
+            pendingAdd(ip, rule);
+        }
+        for (int i = 0; i < eventSizes.length; i++) {
+            eventSizes[i] += remote.windowEventCount(ip, rules.get(i).getName());
+        }
+        return eventSizes;
+    }
+
+    @Override
+    public String eventToString(String ruleName, IpAddress ip) {
+        return local.eventToString(ruleName, ip);
+    }
+
+    @Override
+    public List<IpAddress> sweep(int batchSize) {
+        remote.sweep(batchSize);
+        List<IpAddress> released = local.sweep(batchSize);
+        if (!replicatedIp.isEmpty()) {
+            released.removeIf(replicatedIp::remove);
+        }
+        return released;
+    }
+
+    @Override
+    public List<IpPrefix> sweepPrefixes() {
+        List<IpPrefix> released = local.sweepPrefixes();
+        if (!replicatedPrefixes.isEmpty()) {
+            released.removeIf(replicatedPrefixes::remove);
+        }
+        return released;
+    }
+
+    @Override
+    public int getBlockedIpCount() {
+        return local.getBlockedIpCount();
+    }
+
+    @Override
+    public int getBlockedPrefixCount() {
+        return local.getBlockedPrefixCount();
+    }
+
+    @Override
+    public int getRuleEventsCount() {
+        return local.getRuleEventsCount();
+    }
+
+}
\ No newline at end of file
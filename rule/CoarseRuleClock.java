@@ -0,0 +1,80 @@
+package ru.olekstra.common.rules;
+
+
+/*
+ * Время с точностью resolutionMillis, обновляемое фоновым потоком. Чтение - одно volatile поле
+ * без системного вызова. На каждом тике часы подтягиваются к системному времени, поэтому не уходят от него
+ * (ключи журнала, периоды, снимок после перезапуска считаются по одному времени). Время не идет назад:
+ * перевод системных часов вперед принимается сразу, при переводе назад часы идут вдвое медленнее
+ * (по System.nanoTime()), пока системное время их не догонит. Окна событий RuleEventWindow не теряют
+ * упорядоченность, блокировки при переводе назад истекают не позже чем через вдвое большее время.
+ */
+public class CoarseRuleClock implements RuleClock {
+
+    private final long resolutionMillis;
+    private final RuleClock wallClock;
+    private final Thread ticker;
+    private volatile long millis;
+    // System.nanoTime(), до которого время учтено в millis; только поток ticker
+    private long tickNanos;
+    private volatile boolean running;
+
+    public CoarseRuleClock(long resolutionMillis) {
+        this(resolutionMillis, RuleClock.SYSTEM);
+    }
+
+    /**
+     * @param wallClock системное время, к которому подтягиваются часы
+     */
+    public CoarseRuleClock(long resolutionMillis, RuleClock wallClock) {
+        this.resolutionMillis = resolutionMillis;
+        this.wallClock = wallClock;
+        this.millis = wallClock.currentTimeMillis();
+        this.tickNanos = System.nanoTime();
+        this.ticker = new Thread(this::run, "rule-clock");
+        this.ticker.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        ticker.start();
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        ticker.interrupt();
+        ticker.join();
+    }
+
+    private void run() {
+        while (running) {
+            tick();
+            try {
+                Thread.sleep(resolutionMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    void tick() {
+        long nanos = System.nanoTime();
+        long wall = wallClock.currentTimeMillis();
+        long current = millis;
+        if (wall >= current) {
+            millis = wall;
+            tickNanos = nanos;
+            return;
+        }
+        // системные часы переведены назад: половина прошедшего времени, остаток наносекунд не теряется
+        long step = (nanos - tickNanos) / 2000000;
+        millis = current + step;
+        tickNanos += step * 2000000;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return millis;
+    }
+
+}
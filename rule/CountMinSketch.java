@@ -0,0 +1,90 @@
+package ru.olekstra.common.rules;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+ * Count-Min sketch частоты событий по ключу id правила + IP с фиксированным объемом памяти depth x width.
+ * Оценка никогда не меньше истинного количества, переоценка не больше e/width * N
+ * с вероятностью 1 - e^-depth, где N - количество событий в скетче, средняя переоценка - noise().
+ * Для устаревания событий хранится два поколения, поколения меняются раз в eventLifeMillis,
+ * оценка охватывает события за последние eventLifeMillis .. 2 * eventLifeMillis.
+ * Обновление без блокировок, смена поколения может потерять несколько параллельных событий.
+ */
+class CountMinSketch {
+
+    private final int depth;
+    private final int mask;
+    private final long eventLifeMillis;
+
+    private final AtomicIntegerArray[] generations = new AtomicIntegerArray[2];
+    // количество событий в поколении, для оценки фонового шума noise()
+    private final LongAdder[] totals = {new LongAdder(), new LongAdder()};
+    private volatile int current;
+    private final AtomicLong generationStart;
+
+    /**
+     * @param width ширина строки, степень двойки
+     */
+    CountMinSketch(int depth, int width, long eventLifeMillis, long now) {
+        this.depth = depth;
+        this.mask = width - 1;
+        this.eventLifeMillis = eventLifeMillis;
+        generations[0] = new AtomicIntegerArray(depth * width);
+        generations[1] = new AtomicIntegerArray(depth * width);
+        generationStart = new AtomicLong(now);
+    }
+
+    private int index(int row, int rule, long high, long low) {
+        long h = (high * 0x9E3779B97F4A7C15L + low) * (2 * row + 1) + rule * 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        return row * (mask + 1) + ((int) (h ^ (h >>> 29)) & mask);
+    }
+
+    private void rotate(long now) {
+        long start = generationStart.get();
+        if (now - start > eventLifeMillis && generationStart.compareAndSet(start, now)) {
+            AtomicIntegerArray oldest = generations[current ^ 1];
+            for (int i = 0; i < oldest.length(); i++) {
+                oldest.set(i, 0);
+            }
+            totals[current ^ 1].reset();
+            current ^= 1;
+        }
+    }
+
+    /**
+     * Добавляет событие и возвращает оценку количества событий ключа.
+     * Консервативное обновление: увеличиваются только строки, не превышающие новую оценку,
+     * это заметно снижает переоценку при большом количестве различных ключей
+     */
+    int add(int rule, long high, long low, long now) {
+        rotate(now);
+        AtomicIntegerArray counters = generations[current];
+        AtomicIntegerArray previous = generations[current ^ 1];
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int index = index(row, rule, high, low);
+            estimate = Math.min(estimate, counters.get(index) + previous.get(index));
+        }
+        totals[current].increment();
+        int target = estimate + 1;
+        for (int row = 0; row < depth; row++) {
+            int index = index(row, rule, high, low);
+            counters.accumulateAndGet(index, target - previous.get(index), Math::max);
+        }
+        return target;
+    }
+
+    /*
+     * Среднее значение счетчика строки - ожидаемая переоценка для редкого ключа.
+     * При распределенной атаке с множества адресов шум растет, и порог продвижения отсчитывается от него
+     */
+    int noise() {
+        return (int) ((totals[0].sum() + totals[1].sum()) / (mask + 1));
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,119 @@
+package ru.olekstra.common.service;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBQueryExpression;
+import com.amazonaws.services.dynamodbv2.datamodeling.QueryResultPage;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+import ru.olekstra.domain.AccessRulesEvents;
+
+
+/*
+ * Постраничное чтение журнала из DynamoDB: один запрос Query по ключу периода на страницу,
+ * Limit = pageSize, продолжение с ExclusiveStartKey = LastEvaluatedKey предыдущей страницы.
+ * Курсор - LastEvaluatedKey в виде строки "имя=Tзначение&...", T - тип атрибута (S, N или B).
+ * Ключ записи - период и rangeKey, поэтому продолжение точное и не зависит от совпадения времени записей.
+ */
+public class DynamoDbAccessRulesEventsRepository implements AccessRulesEventsRepository {
+
+    private static final String ENCODING = "UTF-8";
+
+    private final DynamoDBMapper mapper;
+
+    public DynamoDbAccessRulesEventsRepository(DynamoDBMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    @Override
+    public AccessRulesEventsPage<AccessRulesEvents> query(String period, String cursor, int pageSize)
+            throws IOException {
+        AccessRulesEvents hashKey = new AccessRulesEvents();
+        hashKey.setPeriod(period);
+        DynamoDBQueryExpression<AccessRulesEvents> expression = new DynamoDBQueryExpression<AccessRulesEvents>()
+                .withHashKeyValues(hashKey)
+                .withScanIndexForward(true)
+                .withLimit(pageSize);
+        if (cursor != null) {
+            expression.withExclusiveStartKey(decode(cursor));
+        }
+        QueryResultPage<AccessRulesEvents> page;
+        try {
+            page = mapper.queryPage(AccessRulesEvents.class, expression);
+        } catch (AmazonClientException e) {
+            throw new IOException("Cant query AccessRulesEvents. period [" + period + "]", e);
+        }
+        Map<String, AttributeValue> lastKey = page.getLastEvaluatedKey();
+        return new AccessRulesEventsPage<>(page.getResults(), lastKey == null ? null : encode(lastKey));
+    }
+
+    static String encode(Map<String, AttributeValue> key) throws UnsupportedEncodingException {
+        StringBuilder cursor = new StringBuilder();
+        for (Map.Entry<String, AttributeValue> entry : key.entrySet()) {
+            AttributeValue value = entry.getValue();
+            String encoded;
+            if (value.getS() != null) {
+                encoded = "S" + value.getS();
+            } else if (value.getN() != null) {
+                encoded = "N" + value.getN();
+            } else if (value.getB() != null) {
+                ByteBuffer bytes = value.getB().duplicate();
+                byte[] array = new byte[bytes.remaining()];
+                bytes.get(array);
+                encoded = "B" + Base64.getEncoder().encodeToString(array);
+            } else {
+                throw new IllegalArgumentException("Unsupported key attribute [" + entry.getKey() + "]");
+            }
+            if (cursor.length() > 0) {
+                cursor.append('&');
+            }
+            cursor.append(URLEncoder.encode(entry.getKey(), ENCODING))
+                    .append('=')
+                    .append(URLEncoder.encode(encoded, ENCODING));
+        }
+        return cursor.toString();
+    }
+
+    /**
+     * @throws IllegalArgumentException строка не является курсором этого репозитория
+     */
+    static Map<String, AttributeValue> decode(String cursor) throws UnsupportedEncodingException {
+        Map<String, AttributeValue> key = new LinkedHashMap<>();
+        for (String pair : cursor.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid cursor [" + cursor + "]");
+            }
+            String name = URLDecoder.decode(pair.substring(0, separator), ENCODING);
+            String encoded = URLDecoder.decode(pair.substring(separator + 1), ENCODING);
+            if (encoded.isEmpty()) {
+                throw new IllegalArgumentException("Invalid cursor [" + cursor + "]");
+            }
+            String value = encoded.substring(1);
+            switch (encoded.charAt(0)) {
+                case 'S':
+                    key.put(name, new AttributeValue().withS(value));
+                    break;
+                case 'N':
+                    key.put(name, new AttributeValue().withN(value));
+                    break;
+                case 'B':
+                    key.put(name, new AttributeValue().withB(ByteBuffer.wrap(Base64.getDecoder().decode(value))));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid cursor [" + cursor + "]");
+            }
+        }
+        return key;
+    }
+
+}
@@ -0,0 +1,92 @@
+package ru.olekstra.common.service;
+
+import java.util.List;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.olekstra.domain.AccessRulesEvents;
+
+
+/*
+ * Запись журнала AccessRulesEvents пачками BatchWriteItem (не больше 25 записей в запросе DynamoDB).
+ * Пачка с необработанными записями (превышение пропускной способности таблицы) повторяется целиком
+ * с нарастающей паузой - запись идемпотентна, ключ записи тот же. Незаписанными считаются только записи,
+ * оставшиеся необработанными после последней попытки.
+ */
+public class DynamoDbAccessRulesEventsSink implements AccessRulesEventsWriter.Sink {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DynamoDbAccessRulesEventsSink.class);
+
+    static final int MAX_BATCH_SIZE = 25;
+
+    private final DynamoDBMapper mapper;
+    private final int attempts;
+    private final long backoffMillis;
+
+    public DynamoDbAccessRulesEventsSink(DynamoDBMapper mapper, int attempts, long backoffMillis) {
+        this.mapper = mapper;
+        this.attempts = Math.max(1, attempts);
+        this.backoffMillis = backoffMillis;
+    }
+
+    @Override
+    public int write(List<AccessRulesEvents> batch) {
+        int failed = 0;
+        for (int from = 0; from < batch.size(); from += MAX_BATCH_SIZE) {
+            failed += writeChunk(batch.subList(from, Math.min(batch.size(), from + MAX_BATCH_SIZE)));
+        }
+        return failed;
+    }
+
+    private int writeChunk(List<AccessRulesEvents> chunk) {
+        int unprocessed = chunk.size();
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            if (attempt > 0) {
+                pause(backoffMillis << (attempt - 1));
+            }
+            try {
+                List<DynamoDBMapper.FailedBatch> failedBatches = mapper.batchSave(chunk);
+                if (failedBatches.isEmpty()) {
+                    return 0;
+                }
+                unprocessed = unprocessedCount(failedBatches, chunk.size());
+                LOGGER.warn("Cant write AccessRulesEvents batch, retry. unprocessed [{}] attempt [{}]",
+                        unprocessed, attempt + 1, failedBatches.get(0).getException());
+            } catch (AmazonClientException e) {
+                unprocessed = chunk.size();
+                LOGGER.warn("Cant write AccessRulesEvents batch, retry. size [{}] attempt [{}]",
+                        chunk.size(), attempt + 1, e);
+            }
+        }
+        LOGGER.error("Cant write AccessRulesEvents batch. unprocessed [{}] size [{}]", unprocessed, chunk.size());
+        return unprocessed;
+    }
+
+    private static int unprocessedCount(List<DynamoDBMapper.FailedBatch> failedBatches, int chunkSize) {
+        int count = 0;
+        for (DynamoDBMapper.FailedBatch failedBatch : failedBatches) {
+            if (failedBatch.getUnprocessedItems() == null) {
+                return chunkSize;
+            }
+            for (List<WriteRequest> requests : failedBatch.getUnprocessedItems().values()) {
+                count += requests.size();
+            }
+        }
+        return Math.min(count, chunkSize);
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // остановка AccessRulesEventsWriter: оставшиеся попытки без пауз, флаг прерывания сохраняется
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
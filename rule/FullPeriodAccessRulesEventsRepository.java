@@ -0,0 +1,63 @@
+package ru.olekstra.common.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+
+import ru.olekstra.awsutils.DynamodbService;
+import ru.olekstra.domain.AccessRulesEvents;
+
+
+/*
+ * Запасное чтение журнала без DynamoDBMapper: период читается из DynamoDB целиком и делится на страницы в памяти.
+ * Журнал закрытого месяца не меняется, поэтому последний прочитанный закрытый месяц хранится отсортированным
+ * и следующие страницы берутся из него без запроса. Текущий месяц читается целиком на каждую страницу.
+ */
+public class FullPeriodAccessRulesEventsRepository implements AccessRulesEventsRepository {
+
+    private static final Comparator<AccessRulesEvents> BY_RANGE_KEY =
+            Comparator.comparingLong(event -> event.getRangeKey().getMillis());
+
+    private static final class Period {
+        private final String period;
+        private final List<AccessRulesEvents> sorted;
+
+        private Period(String period, List<AccessRulesEvents> sorted) {
+            this.period = period;
+            this.sorted = sorted;
+        }
+    }
+
+    private final DynamodbService dynamodbService;
+    // текущий месяц yyyyMM
+    private final Supplier<String> currentPeriod;
+    private volatile Period closed;
+
+    public FullPeriodAccessRulesEventsRepository(DynamodbService dynamodbService, Supplier<String> currentPeriod) {
+        this.dynamodbService = dynamodbService;
+        this.currentPeriod = currentPeriod;
+    }
+
+    @Override
+    public AccessRulesEventsPage<AccessRulesEvents> query(String period, String cursor, int pageSize)
+            throws IOException {
+        Period cached = closed;
+        if (cached != null && cached.period.equals(period)) {
+            return AccessRulesEventsPage.of(cached.sorted, cursor, pageSize);
+        }
+        List<AccessRulesEvents> events;
+        try {
+            events = new ArrayList<>(dynamodbService.queryObjects(AccessRulesEvents.class, period));
+        } catch (IllegalAccessException | InstantiationException e) {
+            throw new IOException("Cant query AccessRulesEvents. period [" + period + "]", e);
+        }
+        events.sort(BY_RANGE_KEY);
+        if (period.compareTo(currentPeriod.get()) < 0) {
+            closed = new Period(period, events);
+        }
+        return AccessRulesEventsPage.of(events, cursor, pageSize);
+    }
+
+}
@@ -0,0 +1,51 @@
+package ru.olekstra.common.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ru.olekstra.domain.AccessRulesEvents;
+
+
+/*
+ * Журнал в памяти для тестов и локального запуска без DynamoDB.
+ * Может быть и Sink для AccessRulesEventsWriter, тогда записанные события сразу доступны для чтения
+ */
+public class InMemoryAccessRulesEventsRepository implements AccessRulesEventsRepository, AccessRulesEventsWriter.Sink {
+
+    private static final Comparator<AccessRulesEvents> BY_RANGE_KEY =
+            Comparator.comparingLong(event -> event.getRangeKey().getMillis());
+
+    private final Map<String, List<AccessRulesEvents>> periods = new ConcurrentHashMap<>();
+
+    public void add(AccessRulesEvents event) {
+        List<AccessRulesEvents> period = periods.computeIfAbsent(event.getPeriod(), key -> new ArrayList<>());
+        synchronized (period) {
+            int index = Collections.binarySearch(period, event, BY_RANGE_KEY);
+            period.add(index < 0 ? -index - 1 : index + 1, event);
+        }
+    }
+
+    @Override
+    public int write(List<AccessRulesEvents> batch) {
+        for (AccessRulesEvents event : batch) {
+            add(event);
+        }
+        return 0;
+    }
+
+    @Override
+    public AccessRulesEventsPage<AccessRulesEvents> query(String period, String cursor, int pageSize) {
+        List<AccessRulesEvents> events = periods.get(period);
+        if (events == null) {
+            return new AccessRulesEventsPage<>(Collections.<AccessRulesEvents>emptyList(), null);
+        }
+        synchronized (events) {
+            return AccessRulesEventsPage.of(events, cursor, pageSize);
+        }
+    }
+
+}
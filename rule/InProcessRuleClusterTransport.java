@@ -0,0 +1,29 @@
+package ru.olekstra.common.rules;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+
+/*
+ * Транспорт внутри одного процесса: несколько ClusterRuleEventStore, подписанных на один объект,
+ * ведут себя как узлы кластера. Доставка синхронная, в потоке публикации.
+ * Используется для моделирования кластера без внешнего кэша.
+ */
+public class InProcessRuleClusterTransport implements RuleClusterTransport {
+
+    private final List<Consumer<List<RuleClusterMessage>>> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(List<RuleClusterMessage> batch) {
+        for (Consumer<List<RuleClusterMessage>> listener : listeners) {
+            listener.accept(batch);
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<List<RuleClusterMessage>> listener) {
+        listeners.add(listener);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,229 @@
+package ru.olekstra.common.rules;
+
+
+/*
+ * IP адрес клиента в примитивном виде - 128 бит в двух long.
+ * IPv4 хранится как IPv4-mapped IPv6 (::ffff:a.b.c.d), поэтому у всех адресов один формат ключа.
+ * Строка разбирается один раз на запрос, дальше RuleEventStore работает с high/low без аллокаций.
+ */
+public final class IpAddress {
+
+    private static final long IPV4_MAPPED_PREFIX = 0x0000_ffff_0000_0000L;
+
+    private final long high;
+    private final long low;
+
+    public IpAddress(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    public static IpAddress ofIpv4(int ipv4) {
+        return new IpAddress(0, IPV4_MAPPED_PREFIX | (ipv4 & 0xffff_ffffL));
+    }
+
+    /**
+     * Разбор текстового IPv4 или IPv6 адреса (с сокращением :: и IPv4 в конце, зона %... отбрасывается)
+     *
+     * @throws IllegalArgumentException строка не является IP адресом
+     */
+    public static IpAddress parse(String ip) {
+        if (ip.indexOf(':') < 0) {
+            return ofIpv4(parseIpv4(ip, 0, ip.length()));
+        }
+        return parseIpv6(ip);
+    }
+
+    /**
+     * Разбор строки, которая может не быть IP адресом (заголовок запроса, ввод администратора)
+     *
+     * @return null если строка пустая или не является IP адресом
+     */
+    public static IpAddress tryParse(String ip) {
+        if (ip == null || ip.isEmpty()) {
+            return null;
+        }
+        try {
+            return parse(ip);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static int parseIpv4(String ip, int from, int to) {
+        int result = 0;
+        int octets = 0;
+        int i = from;
+        while (i < to) {
+            int value = 0;
+            int digits = 0;
+            while (i < to && ip.charAt(i) != '.') {
+                char c = ip.charAt(i++);
+                if (c < '0' || c > '9' || ++digits > 3) {
+                    throw invalid(ip);
+                }
+                value = value * 10 + (c - '0');
+            }
+            if (digits == 0 || value > 255 || ++octets > 4) {
+                throw invalid(ip);
+            }
+            result = (result << 8) | value;
+            if (i < to && ++i == to) {
+                // точка в конце адреса
+                throw invalid(ip);
+            }
+        }
+        if (octets != 4) {
+            throw invalid(ip);
+        }
+        return result;
+    }
+
+    private static IpAddress parseIpv6(String ip) {
+        int length = ip.indexOf('%') < 0 ? ip.length() : ip.indexOf('%');
+        int[] groups = new int[8];
+        int count = 0;
+        int compressAt = -1;
+
+        int i = 0;
+        if (ip.startsWith("::")) {
+            compressAt = 0;
+            i = 2;
+        }
+        while (i < length) {
+            if (count == 8) {
+                throw invalid(ip);
+            }
+            int end = i;
+            while (end < length && ip.charAt(end) != ':') {
+                end++;
+            }
+            if (ip.lastIndexOf('.', end - 1) >= i) {
+                // IPv4 в последних 32 битах, например ::ffff:10.0.0.1
+                if (end != length || count > 6) {
+                    throw invalid(ip);
+                }
+                int ipv4 = parseIpv4(ip, i, end);
+                groups[count++] = ipv4 >>> 16;
+                groups[count++] = ipv4 & 0xffff;
+                break;
+            }
+            if (end == i || end - i > 4) {
+                throw invalid(ip);
+            }
+            int group = 0;
+            for (int c = i; c < end; c++) {
+                int digit = Character.digit(ip.charAt(c), 16);
+                if (digit < 0) {
+                    throw invalid(ip);
+                }
+                group = (group << 4) | digit;
+            }
+            groups[count++] = group;
+            if (end == length) {
+                break;
+            }
+            if (end + 1 < length && ip.charAt(end + 1) == ':') {
+                if (compressAt >= 0) {
+                    throw invalid(ip);
+                }
+                compressAt = count;
+                i = end + 2;
+            } else if (end + 1 == length) {
+                throw invalid(ip);
+            } else {
+                i = end + 1;
+            }
+        }
+
+        if (compressAt < 0 ? count != 8 : count == 8) {
+            throw invalid(ip);
+        }
+        if (compressAt >= 0) {
+            int tail = count - compressAt;
+            System.arraycopy(groups, compressAt, groups, 8 - tail, tail);
+            for (int g = compressAt; g < 8 - tail; g++) {
+                groups[g] = 0;
+            }
+        }
+
+        long high = 0;
+        long low = 0;
+        for (int g = 0; g < 4; g++) {
+            high = (high << 16) | groups[g];
+            low = (low << 16) | groups[g + 4];
+        }
+        return new IpAddress(high, low);
+    }
+
+    private static IllegalArgumentException invalid(String ip) {
+        return new IllegalArgumentException("Invalid IP address: " + ip);
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    public boolean isIpv4() {
+        return high == 0 && (low >>> 32) == 0xffffL;
+    }
+
+    public int getIpv4() {
+        return (int) low;
+    }
+
+    /*
+     * Перемешанный хэш адреса, используется для выбора сегмента RuleEventStore
+     */
+    public static int hash(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L + low;
+        h = (h ^ (h >>> 32)) * 0xD6E8FEB86659FD93L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof IpAddress)) {
+            return false;
+        }
+        IpAddress that = (IpAddress) o;
+        return high == that.high && low == that.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash(high, low);
+    }
+
+    /*
+     * IPv4 - в точечной записи, IPv6 - восемь групп без сокращения нулей
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        if (isIpv4()) {
+            int ipv4 = getIpv4();
+            return result.
+                    append(ipv4 >>> 24).append('.').
+                    append((ipv4 >>> 16) & 0xff).append('.').
+                    append((ipv4 >>> 8) & 0xff).append('.').
+                    append(ipv4 & 0xff).toString();
+        }
+        for (int g = 0; g < 8; g++) {
+            if (g > 0) {
+                result.append(':');
+            }
+            long part = g < 4 ? high : low;
+            result.append(Long.toHexString((part >>> (48 - 16 * (g % 4))) & 0xffff));
+        }
+        return result.toString();
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,112 @@
+package ru.olekstra.common.rules;
+
+
+/*
+ * Подсеть в 128-битном пространстве адресов IpAddress.
+ * Длина префикса IPv4 подсети хранится со смещением 96 (::ffff:0:0/96), 10.0.0.0/24 - это длина 120.
+ */
+public final class IpPrefix {
+
+    private static final int IPV4_OFFSET = 96;
+
+    private final long high;
+    private final long low;
+    private final int length;
+
+    private IpPrefix(long high, long low, int length) {
+        this.high = high & maskHigh(length);
+        this.low = low & maskLow(length);
+        this.length = length;
+    }
+
+    /**
+     * @param length длина префикса в 128-битном пространстве, 0..128
+     */
+    public static IpPrefix of(IpAddress ip, int length) {
+        if (length < 0 || length > 128) {
+            throw new IllegalArgumentException("Invalid prefix length: " + length);
+        }
+        return new IpPrefix(ip.getHigh(), ip.getLow(), length);
+    }
+
+    /*
+     * Подсеть адреса, длина префикса задается отдельно для IPv4 и IPv6
+     */
+    public static IpPrefix of(IpAddress ip, int ipv4Length, int ipv6Length) {
+        return ip.isIpv4() ? of(ip, IPV4_OFFSET + ipv4Length) : of(ip, ipv6Length);
+    }
+
+    /**
+     * Разбор записи вида 10.0.0.0/24 или 2001:db8::/32, без длины - один адрес
+     *
+     * @throws IllegalArgumentException строка не является подсетью
+     */
+    public static IpPrefix parse(String prefix) {
+        int slash = prefix.indexOf('/');
+        IpAddress ip = IpAddress.parse(slash < 0 ? prefix : prefix.substring(0, slash));
+        int maxLength = ip.isIpv4() ? 32 : 128;
+        int length = maxLength;
+        if (slash >= 0) {
+            try {
+                length = Integer.parseInt(prefix.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid prefix: " + prefix, e);
+            }
+            if (length < 0 || length > maxLength) {
+                throw new IllegalArgumentException("Invalid prefix: " + prefix);
+            }
+        }
+        return ip.isIpv4() ? of(ip, IPV4_OFFSET + length) : of(ip, length);
+    }
+
+    static long maskHigh(int length) {
+        return length >= 64 ? -1L : length == 0 ? 0 : -1L << (64 - length);
+    }
+
+    static long maskLow(int length) {
+        return length <= 64 ? 0 : length == 128 ? -1L : -1L << (128 - length);
+    }
+
+    public boolean contains(IpAddress ip) {
+        return (ip.getHigh() & maskHigh(length)) == high && (ip.getLow() & maskLow(length)) == low;
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public boolean isIpv4() {
+        return length >= IPV4_OFFSET && new IpAddress(high, low).isIpv4();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof IpPrefix)) {
+            return false;
+        }
+        IpPrefix that = (IpPrefix) o;
+        return high == that.high && low == that.low && length == that.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * IpAddress.hash(high, low) + length;
+    }
+
+    @Override
+    public String toString() {
+        return new IpAddress(high, low) + "/" + (isIpv4() ? length - IPV4_OFFSET : length);
+    }
+
+}
\ No newline at end of file
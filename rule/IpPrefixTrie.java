@@ -0,0 +1,176 @@
+package ru.olekstra.common.rules;
+
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+
+/*
+ * Patricia trie (бинарное дерево со сжатием путей) подсетей IpPrefix.
+ * Поиск самого длинного префикса, содержащего адрес, проходит не больше 128 бит адреса.
+ * Промежуточные узлы без значения появляются только в точках ветвления.
+ * Не потокобезопасно, синхронизация на стороне RuleEventStore.
+ */
+class IpPrefixTrie<V> {
+
+    private static final class Node<V> {
+        private final long high;
+        private final long low;
+        private final int length;
+        private V value;
+        private Node<V> zero;
+        private Node<V> one;
+
+        private Node(long high, long low, int length, V value) {
+            this.high = high & IpPrefix.maskHigh(length);
+            this.low = low & IpPrefix.maskLow(length);
+            this.length = length;
+            this.value = value;
+        }
+
+        private Node<V> child(int bit) {
+            return bit == 0 ? zero : one;
+        }
+
+        private void setChild(int bit, Node<V> node) {
+            if (bit == 0) {
+                zero = node;
+            } else {
+                one = node;
+            }
+        }
+    }
+
+    private Node<V> root;
+    private int size;
+
+    private static int bit(long high, long low, int index) {
+        return index < 64 ? (int) (high >>> (63 - index)) & 1 : (int) (low >>> (127 - index)) & 1;
+    }
+
+    private static int commonLength(long high1, long low1, long high2, long low2, int max) {
+        long diff = high1 ^ high2;
+        int common = diff != 0 ? Long.numberOfLeadingZeros(diff) : 64 + Long.numberOfLeadingZeros(low1 ^ low2);
+        return Math.min(common, max);
+    }
+
+    V put(IpPrefix prefix, V value) {
+        long high = prefix.getHigh();
+        long low = prefix.getLow();
+        int length = prefix.getLength();
+
+        Node<V> parent = null;
+        int direction = 0;
+        Node<V> node = root;
+        while (node != null) {
+            int common = commonLength(node.high, node.low, high, low, Math.min(node.length, length));
+            if (common == node.length) {
+                if (node.length == length) {
+                    V previous = node.value;
+                    node.value = value;
+                    if (previous == null) {
+                        size++;
+                    }
+                    return previous;
+                }
+                parent = node;
+                direction = bit(high, low, node.length);
+                node = node.child(direction);
+                continue;
+            }
+
+            Node<V> inserted;
+            if (common == length) {
+                // новая подсеть содержит node
+                inserted = new Node<>(high, low, length, value);
+                inserted.setChild(bit(node.high, node.low, length), node);
+            } else {
+                // ветвление в первом несовпадающем бите
+                inserted = new Node<>(high, low, common, null);
+                inserted.setChild(bit(node.high, node.low, common), node);
+                inserted.setChild(bit(high, low, common), new Node<>(high, low, length, value));
+            }
+            attach(parent, direction, inserted);
+            size++;
+            return null;
+        }
+        attach(parent, direction, new Node<>(high, low, length, value));
+        size++;
+        return null;
+    }
+
+    private void attach(Node<V> parent, int direction, Node<V> node) {
+        if (parent == null) {
+            root = node;
+        } else {
+            parent.setChild(direction, node);
+        }
+    }
+
+    V remove(IpPrefix prefix) {
+        Object[] removed = new Object[1];
+        root = remove(root, prefix.getHigh(), prefix.getLow(), prefix.getLength(), removed);
+        if (removed[0] != null) {
+            size--;
+        }
+        @SuppressWarnings("unchecked")
+        V value = (V) removed[0];
+        return value;
+    }
+
+    private Node<V> remove(Node<V> node, long high, long low, int length, Object[] removed) {
+        if (node == null || node.length > length
+                || commonLength(node.high, node.low, high, low, node.length) < node.length) {
+            return node;
+        }
+        if (node.length == length) {
+            removed[0] = node.value;
+            node.value = null;
+        } else {
+            int direction = bit(high, low, node.length);
+            node.setChild(direction, remove(node.child(direction), high, low, length, removed));
+        }
+        // узел без значения нужен только как точка ветвления двух поддеревьев
+        if (node.value == null && (node.zero == null || node.one == null)) {
+            return node.zero == null ? node.one : node.zero;
+        }
+        return node;
+    }
+
+    /**
+     * Самая длинная подсеть, содержащая адрес, значение которой проходит фильтр
+     */
+    V longestMatch(long high, long low, Predicate<? super V> filter) {
+        V best = null;
+        Node<V> node = root;
+        while (node != null && commonLength(node.high, node.low, high, low, node.length) == node.length) {
+            if (node.value != null && filter.test(node.value)) {
+                best = node.value;
+            }
+            if (node.length == 128) {
+                break;
+            }
+            node = node.child(bit(high, low, node.length));
+        }
+        return best;
+    }
+
+    void forEach(BiConsumer<IpPrefix, V> action) {
+        forEach(root, action);
+    }
+
+    private void forEach(Node<V> node, BiConsumer<IpPrefix, V> action) {
+        if (node == null) {
+            return;
+        }
+        if (node.value != null) {
+            action.accept(IpPrefix.of(new IpAddress(node.high, node.low), node.length), node.value);
+        }
+        forEach(node.zero, action);
+        forEach(node.one, action);
+    }
+
+    int size() {
+        return size;
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,143 @@
+package ru.olekstra.common.rules;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/*
+ * Гистограмма задержек в наносекундах по схеме HdrHistogram: значения до 2^SUB_BITS считаются точно,
+ * дальше каждый интервал [2^k, 2^(k+1)) делится на 2^(SUB_BITS-1) равных корзин,
+ * относительная ошибка процентиля не больше 2^-(SUB_BITS-1), т.е. ~6%.
+ * Запись без блокировок и без выделения памяти, значения накапливаются с момента создания.
+ * Счетчики разбиты на полосы по потоку, чтобы параллельные записи в одну корзину не делили кэш-линию.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final int BUCKET_COUNT = SUB_COUNT + (63 - SUB_BITS) * HALF_COUNT;
+    private static final int STRIPE_COUNT = 8;
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPE_COUNT * BUCKET_COUNT);
+    // Обновляется только при новом максимуме, обычная запись ограничивается чтением
+    private final AtomicLong max = new AtomicLong();
+
+    private static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (value >>> shift) - HALF_COUNT;
+    }
+
+    // Наибольшее значение, попадающее в корзину
+    private static long highestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int stripe = (int) Thread.currentThread().getId() & (STRIPE_COUNT - 1);
+        counts.incrementAndGet(stripe * BUCKET_COUNT + index(nanos));
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+            currentMax = max.get();
+        }
+    }
+
+    // Замер от момента startNanos = System.nanoTime()
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public Summary summary() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long count = counts.get(i);
+            snapshot[i % BUCKET_COUNT] += count;
+            total += count;
+        }
+        long maxValue = max.get();
+        return new Summary(total,
+                percentile(snapshot, total, 0.5, maxValue),
+                percentile(snapshot, total, 0.9, maxValue),
+                percentile(snapshot, total, 0.99, maxValue),
+                percentile(snapshot, total, 0.999, maxValue),
+                maxValue);
+    }
+
+    private static long percentile(long[] snapshot, long total, double quantile, long maxValue) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * quantile));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    /*
+     * Процентили задержки в наносекундах на момент снятия
+     */
+    public static final class Summary {
+        private final long count;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        private Summary(long count, long p50, long p90, long p99, long p999, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " p50=" + p50 + " p90=" + p90 + " p99=" + p99 + " p999=" + p999 + " max=" + max;
+        }
+    }
+
+}
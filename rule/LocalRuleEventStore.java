@@ -0,0 +1,800 @@
+package ru.olekstra.common.rules;
+
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/*
+ * Хранилище разбито на сегменты по хэшу IP, у каждого сегмента своя блокировка (lock striping).
+ * Все данные одного IP (блокировка и события всех правил) лежат в одном сегменте,
+ * запросы с разных IP почти всегда попадают в разные сегменты и друг друга не ждут.
+ * Ключи - IP в примитивном виде (IpAddress) и id правила, таблицы RuleIpMap поиск выполняют без аллокаций.
+ * Блокировки подсетей хранятся отдельно, в IpPrefixTrie под своей блокировкой чтения/записи.
+ */
+public class LocalRuleEventStore implements RuleEventStore {
+
+    private static final int SEGMENT_COUNT = 64;
+
+    private static final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+
+        // Заблокированные IP. value - дата после которой блокировку можно снять и имя события
+        private final RuleIpMap<BlockItem> blockedIp = new RuleIpMap<>();
+
+        /* Массив данных о срабатывании правил (о событиях).
+         * Ключ массива собыий срабатывания правил - id правила + IP клиента
+         * Срабатывания правила (событие), хранятся внутри объекта RuleEventList
+         * RuleEventList - хранит события правила, содержи время жизни события
+         */
+        private final RuleIpMap<RuleEventList> ruleEventsData = new RuleIpMap<>();
+
+        private final RuleIpMap<RuleEventWindow> ruleEventWindows = new RuleIpMap<>();
+    }
+
+    // Позиция обхода фоновой очистки: сегмент и слот в его таблице
+    private static final class SweepCursor {
+        private int segment;
+        private int slot;
+    }
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    // Время ожидания занятой блокировки сегмента
+    private final LatencyHistogram lockWait = new LatencyHistogram();
+
+    /* Быстрая проверка isBlocked без блокировки сегмента: почти все IP не заблокированы,
+     * и фильтр отвечает на это точно. Изменяется под блокировкой сегмента вместе с таблицей blockedIp
+     */
+    private final BlockedIpFilter blockedFilter = new BlockedIpFilter(1 << 16);
+
+    /* Режим скользящего окна. Вместо RuleEventList для пары правило + IP хранится RuleEventWindow
+     * с фиксированным объемом памяти, проверка лимитов правила выполняется за O(1)
+     */
+    private final boolean slidingWindow;
+
+    private final RuleClock clock;
+
+    // Заблокированные подсети. Поиск самой длинной подсети, содержащей IP - O(длина префикса)
+    private final IpPrefixTrie<BlockItem> blockedPrefixes = new IpPrefixTrie<>();
+    private final ReadWriteLock prefixReadWriteLock = new ReentrantReadWriteLock();
+    private final Lock prefixReadLock = prefixReadWriteLock.readLock();
+    private final Lock prefixWriteLock = prefixReadWriteLock.writeLock();
+    // пока подсетей нет, проверка обходится без блокировки
+    private volatile int blockedPrefixCount;
+
+    /* Эскалация блокировки до подсети, null - выключена.
+     * Для каждой подсети считается количество заблокированных в ней адресов
+     */
+    private final SubnetBlockRule subnetRule;
+    private final ConcurrentMap<IpPrefix, AtomicInteger> blockedInSubnet = new ConcurrentHashMap<>();
+
+    // Имена правил, приведенные к небольшим целым id для ключей таблиц
+    private final ConcurrentMap<String, Integer> ruleIds = new ConcurrentHashMap<>();
+    private final AtomicInteger ruleIdSequence = new AtomicInteger();
+
+    // Используются только потоком очистки, обход продолжается с места остановки
+    private final SweepCursor blockedIpSweep = new SweepCursor();
+    private final SweepCursor ruleEventsSweep = new SweepCursor();
+
+    public LocalRuleEventStore() {
+        this(false);
+    }
+
+    public LocalRuleEventStore(boolean slidingWindow) {
+        this(slidingWindow, null);
+    }
+
+    public LocalRuleEventStore(boolean slidingWindow, SubnetBlockRule subnetRule) {
+        this(slidingWindow, subnetRule, RuleClock.SYSTEM);
+    }
+
+    public LocalRuleEventStore(boolean slidingWindow, SubnetBlockRule subnetRule, RuleClock clock) {
+        this.slidingWindow = slidingWindow;
+        this.subnetRule = subnetRule;
+        this.clock = clock;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /*
+     * Захват блокировки сегмента, ожидание занятой блокировки попадает в lockWait.
+     * Свободная блокировка берется tryLock без замера времени
+     */
+    private void lock(Segment segment) {
+        if (segment.lock.tryLock()) {
+            return;
+        }
+        long start = System.nanoTime();
+        segment.lock.lock();
+        lockWait.recordSince(start);
+    }
+
+    RuleClock getClock() {
+        return clock;
+    }
+
+    public LatencyHistogram getLockWait() {
+        return lockWait;
+    }
+
+    private Segment segmentOf(IpAddress ip) {
+        return segments[IpAddress.hash(ip.getHigh(), ip.getLow()) & (SEGMENT_COUNT - 1)];
+    }
+
+    private int ruleId(String ruleName) {
+        Integer id = ruleIds.get(ruleName);
+        if (id == null) {
+            id = ruleIds.computeIfAbsent(ruleName, name -> ruleIdSequence.getAndIncrement());
+        }
+        return id;
+    }
+
+    // -1 - правило еще не встречалось, данных по нему нет
+    private int findRuleId(String ruleName) {
+        Integer id = ruleIds.get(ruleName);
+        return id == null ? -1 : id;
+    }
+
+    @Override
+    public int block(IpAddress ip, BlockItem blockItem) {
+        BlockItem previous = putBlock(ip, blockItem);
+        if (subnetRule == null) {
+            return 0;
+        }
+        AtomicInteger blocked = blockedInSubnet.computeIfAbsent(subnetRule.subnetOf(ip), subnet -> new AtomicInteger());
+        return previous == null ? blocked.incrementAndGet() : blocked.get();
+    }
+
+    /*
+     * Блокировка, полученная от другого узла кластера.
+     * Возвращает false, если IP уже был заблокирован на этом узле (блокировка только продлевается)
+     */
+    boolean blockReplica(IpAddress ip, BlockItem blockItem) {
+        BlockItem previous = putBlock(ip, blockItem);
+        if (previous == null && subnetRule != null) {
+            blockedInSubnet.computeIfAbsent(subnetRule.subnetOf(ip), subnet -> new AtomicInteger()).incrementAndGet();
+        }
+        return previous == null;
+    }
+
+    private BlockItem putBlock(IpAddress ip, BlockItem blockItem) {
+        Segment segment = segmentOf(ip);
+        lock(segment);
+        try {
+            BlockItem previous = segment.blockedIp.put(0, ip.getHigh(), ip.getLow(), blockItem);
+            if (previous == null) {
+                blockedFilter.add(ip.getHigh(), ip.getLow());
+            }
+            return previous;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    private void subnetReleased(IpAddress ip) {
+        if (subnetRule != null) {
+            blockedInSubnet.computeIfPresent(subnetRule.subnetOf(ip), (subnet, blocked) ->
+                    blocked.decrementAndGet() <= 0 ? null : blocked);
+        }
+    }
+
+    @Override
+    public void blockPrefix(IpPrefix prefix, BlockItem blockItem) {
+        blockPrefixReplica(prefix, blockItem);
+    }
+
+    // Как blockReplica для подсети: false, если подсеть уже была заблокирована
+    boolean blockPrefixReplica(IpPrefix prefix, BlockItem blockItem) {
+        prefixWriteLock.lock();
+        try {
+            BlockItem previous = blockedPrefixes.put(prefix, blockItem);
+            blockedPrefixCount = blockedPrefixes.size();
+            return previous == null;
+        } finally {
+            prefixWriteLock.unlock();
+        }
+    }
+
+    /*
+     * Проверка, что IP входит в заблокированную подсеть с неистекшим сроком блокировки.
+     * Истекшие подсети снимаются в sweepPrefixes
+     */
+    @Override
+    public boolean isPrefixBlocked(IpAddress ip) {
+        if (blockedPrefixCount == 0) {
+            return false;
+        }
+        long now = clock.currentTimeMillis();
+        prefixReadLock.lock();
+        try {
+            return blockedPrefixes.longestMatch(ip.getHigh(), ip.getLow(),
+                    blockItem -> blockItem.getExpireTime().getMillis() >= now) != null;
+        } finally {
+            prefixReadLock.unlock();
+        }
+    }
+
+    // Снимает блокировки подсетей с истекшим сроком
+    @Override
+    public List<IpPrefix> sweepPrefixes() {
+        List<IpPrefix> released = new ArrayList<>();
+        if (blockedPrefixCount == 0) {
+            return released;
+        }
+        long now = clock.currentTimeMillis();
+        prefixWriteLock.lock();
+        try {
+            blockedPrefixes.forEach((prefix, blockItem) -> {
+                if (blockItem.getExpireTime().getMillis() < now) {
+                    released.add(prefix);
+                }
+            });
+            for (IpPrefix prefix : released) {
+                blockedPrefixes.remove(prefix);
+            }
+            blockedPrefixCount = blockedPrefixes.size();
+        } finally {
+            prefixWriteLock.unlock();
+        }
+        return released;
+    }
+
+    @Override
+    public int getBlockedPrefixCount() {
+        return blockedPrefixCount;
+    }
+
+    @Override
+    public BlockedIpState tryReleaseBlock(IpAddress ip) {
+        if (!blockedFilter.mightContain(ip.getHigh(), ip.getLow())) {
+            return BlockedIpState.UNBLOCKED;
+        }
+        Segment segment = segmentOf(ip);
+        lock(segment);
+        try {
+            BlockItem blockItem = segment.blockedIp.get(0, ip.getHigh(), ip.getLow());
+            if (blockItem == null) {
+                return BlockedIpState.UNBLOCKED;
+            }
+            if (blockItem.getExpireTime().getMillis() >= clock.currentTimeMillis()) {
+                return BlockedIpState.BLOCKED;
+            }
+            segment.blockedIp.remove(0, ip.getHigh(), ip.getLow());
+            blockedFilter.remove(ip.getHigh(), ip.getLow());
+            eventRemove(segment, findRuleId(blockItem.getRuleName()), ip.getHigh(), ip.getLow());
+        } finally {
+            segment.lock.unlock();
+        }
+        subnetReleased(ip);
+        return BlockedIpState.RELEASED;
+    }
+
+    @Override
+    public void eventReset(String ruleName, IpAddress ip) {
+        int ruleId = findRuleId(ruleName);
+        if (ruleId < 0) {
+            return;
+        }
+        Segment segment = segmentOf(ip);
+        lock(segment);
+        try {
+            eventRemove(segment, ruleId, ip.getHigh(), ip.getLow());
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    private void eventRemove(Segment segment, int ruleId, long high, long low) {
+        if (ruleId < 0) {
+            return;
+        }
+        if (slidingWindow) {
+            segment.ruleEventWindows.remove(ruleId, high, low);
+        } else {
+            segment.ruleEventsData.remove(ruleId, high, low);
+        }
+    }
+
+    @Override
+    public RuleEventList getRuleEventsData(String ruleName, IpAddress ip) {
+        int ruleId = findRuleId(ruleName);
+        if (ruleId < 0) {
+            return null;
+        }
+        Segment segment = segmentOf(ip);
+        lock(segment);
+        try {
+            if (slidingWindow) {
+                RuleEventWindow window = segment.ruleEventWindows.get(ruleId, ip.getHigh(), ip.getLow());
+                return window == null ? null : window.toRuleEventList();
+            }
+            return segment.ruleEventsData.get(ruleId, ip.getHigh(), ip.getLow());
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean hasEvents(String ruleName, IpAddress ip) {
+        int ruleId = findRuleId(ruleName);
+        if (ruleId < 0) {
+            return false;
+        }
+        Segment segment = segmentOf(ip);
+        lock(segment);
+        try {
+            if (slidingWindow) {
+                RuleEventWindow window = segment.ruleEventWindows.get(ruleId, ip.getHigh(), ip.getLow());
+                return window != null && window.size(clock.currentTimeMillis()) > 0;
+            }
+            RuleEventList ruleEventList = segment.ruleEventsData.get(ruleId, ip.getHigh(), ip.getLow());
+            return ruleEventList != null && !ruleEventList.isEmpty();
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public int eventAdd(IpAddress ip, OlekstraRule rule) {
+        int ruleId = ruleId(rule.getName());
+        Segment segment = segmentOf(ip);
+        long now = clock.currentTimeMillis();
+        lock(segment);
+        try {
+            return eventAdd(segment, ruleId, ip, rule, now);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /*
+     * Все правила одного IP лежат в одном сегменте, поэтому события добавляются под одной блокировкой
+     */
+    @Override
+    public int[] eventAddAll(IpAddress ip, List<OlekstraRule> rules) {
+        int[] ruleIds = new int[rules.size()];
+        for (int i = 0; i < ruleIds.length; i++) {
+            ruleIds[i] = ruleId(rules.get(i).getName());
+        }
+        Segment segment = segmentOf(ip);
+        long now = clock.currentTimeMillis();
+        int[] eventSizes = new int[ruleIds.length];
+        lock(segment);
+        try {
+            for (int i = 0; i < ruleIds.length; i++) {
+                eventSizes[i] = eventAdd(segment, ruleIds[i], ip, rules.get(i), now);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+        return eventSizes;
+    }
+
+    // Вызывается под блокировкой сегмента
+    private int eventAdd(Segment segment, int ruleId, IpAddress ip, OlekstraRule rule, long now) {
+        if (slidingWindow) {
+            return windowEventAdd(segment, ruleId, ip, rule.getEventLifeMillis(), RuleEventWindow.capacityOf(rule), 1,
+                    rule.getReasonDescription(), rule.getReason(), now);
+        }
+
+        String reason = rule.getReasonDescription() == null ? "" : rule.getReasonDescription() +
+                (rule.getReason() == null ? "" : ": " + rule.getReason());
+
+        RuleEventList ruleEventList = segment.ruleEventsData.get(ruleId, ip.getHigh(), ip.getLow());
+        if (ruleEventList == null) {
+            ruleEventList = new RuleEventList();
+            ruleEventList.setEventLifeMillis(rule.getEventLifeMillis());
+            segment.ruleEventsData.put(ruleId, ip.getHigh(), ip.getLow(), ruleEventList);
+        } else {
+            eventListClear(ruleEventList, now);
+        }
+        // список событий хранит RuleEvent с DateTime, без выделения памяти работает режим скользящего окна
+        ruleEventList.add(new RuleEvent(new DateTime(now), reason));
+        return ruleEventList.size();
+    }
+
+    /*
+     * Добавление count событий без OlekstraRule, для событий полученных от других узлов кластера.
+     * Только в режиме скользящего окна
+     */
+    int windowEventAdd(IpAddress ip, String ruleName, long eventLifeMillis, int capacity, int count) {
+        int ruleId = ruleId(ruleName);
+        Segment segment = segmentOf(ip);
+        long now = clock.currentTimeMillis();
+        lock(segment);
+        try {
+            return windowEventAdd(segment, ruleId, ip, eventLifeMillis, capacity, count, null, null, now);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    // Вызывается под блокировкой сегмента
+    private int windowEventAdd(Segment segment, int ruleId, IpAddress ip, long eventLifeMillis, int capacity, int count,
+                               String reasonDescription, String reason, long now) {
+        RuleEventWindow window = segment.ruleEventWindows.get(ruleId, ip.getHigh(), ip.getLow());
+        if (window == null) {
+            window = new RuleEventWindow(eventLifeMillis, capacity);
+            segment.ruleEventWindows.put(ruleId, ip.getHigh(), ip.getLow(), window);
+        } else if (window.capacity() < capacity) {
+            window = window.withCapacity(capacity);
+            segment.ruleEventWindows.put(ruleId, ip.getHigh(), ip.getLow(), window);
+        }
+        int eventSize = 0;
+        for (int i = 0; i < Math.min(count, capacity); i++) {
+            eventSize = window.add(now, reasonDescription, reason);
+        }
+        return eventSize;
+    }
+
+    // Количество актуальных событий окна, только в режиме скользящего окна
+    int windowEventCount(IpAddress ip, String ruleName) {
+        int ruleId = findRuleId(ruleName);
+        if (ruleId < 0) {
+            return 0;
+        }
+        Segment segment = segmentOf(ip);
+        lock(segment);
+        try {
+            RuleEventWindow window = segment.ruleEventWindows.get(ruleId, ip.getHigh(), ip.getLow());
+            return window == null ? 0 : window.size(clock.currentTimeMillis());
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /*
+     * Фоновая очистка. За один вызов просматривает не более batchSize слотов каждой из таблиц
+     * (блокировки и события), блокировка сегмента держится только на время просмотра его части:
+     * снимает истекшие блокировки и удаляет устаревшие события правил для IP, которые перестали обращаться.
+     */
+    @Override
+    public List<IpAddress> sweep(int batchSize) {
+        long now = clock.currentTimeMillis();
+        List<IpAddress> released = new ArrayList<>();
+
+        sweepBlockedIp(batchSize, now, released);
+        sweepRuleEvents(batchSize, now);
+        return released;
+    }
+
+    private void sweepBlockedIp(int batchSize, long now, List<IpAddress> released) {
+        SweepCursor cursor = blockedIpSweep;
+        int budget = batchSize;
+        for (int visited = 0; budget > 0 && visited < SEGMENT_COUNT; visited++) {
+            Segment segment = segments[cursor.segment];
+            lock(segment);
+            try {
+                RuleIpMap<BlockItem> blockedIp = segment.blockedIp;
+                while (budget > 0 && cursor.slot < blockedIp.capacity()) {
+                    budget--;
+                    BlockItem blockItem = blockedIp.valueAt(cursor.slot);
+                    if (blockItem != null && blockItem.getExpireTime().getMillis() < now) {
+                        long high = blockedIp.highAt(cursor.slot);
+                        long low = blockedIp.lowAt(cursor.slot);
+                        eventRemove(segment, findRuleId(blockItem.getRuleName()), high, low);
+                        IpAddress ip = new IpAddress(high, low);
+                        subnetReleased(ip);
+                        released.add(ip);
+                        blockedFilter.remove(high, low);
+                        if (blockedIp.removeAt(cursor.slot)) {
+                            // на место удаленной записи сдвинута следующая
+                            continue;
+                        }
+                    }
+                    cursor.slot++;
+                }
+                if (cursor.slot < blockedIp.capacity()) {
+                    return;
+                }
+                // обход таблицы сегмента закончен, курсор начнет с нуля - слоты можно перестроить
+                blockedIp.shrink();
+            } finally {
+                segment.lock.unlock();
+            }
+            cursor.segment = (cursor.segment + 1) & (SEGMENT_COUNT - 1);
+            cursor.slot = 0;
+        }
+    }
+
+    private void sweepRuleEvents(int batchSize, long now) {
+        SweepCursor cursor = ruleEventsSweep;
+        int budget = batchSize;
+        for (int visited = 0; budget > 0 && visited < SEGMENT_COUNT; visited++) {
+            Segment segment = segments[cursor.segment];
+            lock(segment);
+            try {
+                RuleIpMap<?> events = slidingWindow ? segment.ruleEventWindows : segment.ruleEventsData;
+                while (budget > 0 && cursor.slot < events.capacity()) {
+                    budget--;
+                    // пустое окно или список удаляются из таблицы
+                    if (isExpired(events.valueAt(cursor.slot), now) && events.removeAt(cursor.slot)) {
+                        continue;
+                    }
+                    cursor.slot++;
+                }
+                if (cursor.slot < events.capacity()) {
+                    return;
+                }
+                events.shrink();
+            } finally {
+                segment.lock.unlock();
+            }
+            cursor.segment = (cursor.segment + 1) & (SEGMENT_COUNT - 1);
+            cursor.slot = 0;
+        }
+    }
+
+    private boolean isExpired(Object events, long now) {
+        if (events instanceof RuleEventWindow) {
+            return ((RuleEventWindow) events).size(now) == 0;
+        }
+        if (events instanceof RuleEventList) {
+            RuleEventList ruleEventList = (RuleEventList) events;
+            eventListClear(ruleEventList, now);
+            return ruleEventList.isEmpty();
+        }
+        return false;
+    }
+
+    /**
+     * Запись снимка состояния: заблокированные IP и подсети, события правил.
+     * Сегменты записываются по очереди, блокировка держится только на время записи одного сегмента.
+     */
+    public void writeSnapshot(Path file) throws IOException {
+        String[] ruleNames = new String[ruleIdSequence.get()];
+        for (Map.Entry<String, Integer> entry : ruleIds.entrySet()) {
+            if (entry.getValue() < ruleNames.length) {
+                ruleNames[entry.getValue()] = entry.getKey();
+            }
+        }
+
+        try (RuleEventStoreSnapshot.Writer writer = new RuleEventStoreSnapshot.Writer(file, clock.currentTimeMillis())) {
+            for (Segment segment : segments) {
+                lock(segment);
+                try {
+                    writeSnapshot(writer, segment, ruleNames);
+                } finally {
+                    segment.lock.unlock();
+                }
+            }
+
+            List<IpPrefix> prefixes = new ArrayList<>();
+            List<BlockItem> prefixItems = new ArrayList<>();
+            prefixReadLock.lock();
+            try {
+                blockedPrefixes.forEach((prefix, blockItem) -> {
+                    prefixes.add(prefix);
+                    prefixItems.add(blockItem);
+                });
+            } finally {
+                prefixReadLock.unlock();
+            }
+            for (int i = 0; i < prefixes.size(); i++) {
+                BlockItem blockItem = prefixItems.get(i);
+                writer.blockPrefix(prefixes.get(i), blockItem.getExpireTime().getMillis(), blockItem.getRuleName());
+            }
+            writer.commit();
+        }
+    }
+
+    private void writeSnapshot(RuleEventStoreSnapshot.Writer writer, Segment segment, String[] ruleNames)
+            throws IOException {
+        RuleIpMap<BlockItem> blockedIp = segment.blockedIp;
+        for (int slot = 0; slot < blockedIp.capacity(); slot++) {
+            BlockItem blockItem = blockedIp.valueAt(slot);
+            if (blockItem != null) {
+                writer.block(blockedIp.highAt(slot), blockedIp.lowAt(slot), blockItem.getExpireTime().getMillis(),
+                        blockItem.getRuleName());
+            }
+        }
+
+        RuleIpMap<?> events = slidingWindow ? segment.ruleEventWindows : segment.ruleEventsData;
+        for (int slot = 0; slot < events.capacity(); slot++) {
+            Object value = events.valueAt(slot);
+            int ruleId = events.ruleAt(slot);
+            if (value == null || ruleId >= ruleNames.length) {
+                continue;
+            }
+            if (value instanceof RuleEventWindow) {
+                RuleEventWindow window = (RuleEventWindow) value;
+                writer.eventsStart(events.highAt(slot), events.lowAt(slot), ruleNames[ruleId],
+                        window.getEventLifeMillis(), window.capacity(), window.count());
+                for (int i = 0; i < window.count(); i++) {
+                    writer.eventTime(window.timeAt(i));
+                }
+            } else {
+                RuleEventList ruleEventList = (RuleEventList) value;
+                writer.eventsStart(events.highAt(slot), events.lowAt(slot), ruleNames[ruleId],
+                        ruleEventList.getEventLifeMillis(), ruleEventList.size(), ruleEventList.size());
+                for (RuleEvent ruleEvent : ruleEventList) {
+                    writer.eventTime(ruleEvent.getDate().getMillis());
+                }
+            }
+        }
+    }
+
+    /**
+     * Загрузка снимка, записанного {@link #writeSnapshot(Path)}. Истекшие блокировки и устаревшие события пропускаются.
+     * Снимок не зависит от режима хранилища, события списка можно загрузить в скользящее окно и наоборот.
+     *
+     * @return количество загруженных записей
+     */
+    public int loadSnapshot(Path file) throws IOException {
+        ByteBuffer buffer = RuleEventStoreSnapshot.map(file);
+        long now = clock.currentTimeMillis();
+        int loaded = 0;
+        try {
+            for (byte type = buffer.get(); type != RuleEventStoreSnapshot.END; type = buffer.get()) {
+                long high = buffer.getLong();
+                long low = buffer.getLong();
+                if (type == RuleEventStoreSnapshot.BLOCK) {
+                    long expireMillis = buffer.getLong();
+                    String ruleName = RuleEventStoreSnapshot.getString(buffer);
+                    if (expireMillis > now) {
+                        block(new IpAddress(high, low), blockItem(expireMillis, ruleName));
+                        loaded++;
+                    }
+                } else if (type == RuleEventStoreSnapshot.BLOCK_PREFIX) {
+                    int length = buffer.getInt();
+                    long expireMillis = buffer.getLong();
+                    String ruleName = RuleEventStoreSnapshot.getString(buffer);
+                    if (expireMillis > now) {
+                        blockPrefix(IpPrefix.of(new IpAddress(high, low), length), blockItem(expireMillis, ruleName));
+                        loaded++;
+                    }
+                } else if (type == RuleEventStoreSnapshot.EVENTS) {
+                    String ruleName = RuleEventStoreSnapshot.getString(buffer);
+                    long eventLifeMillis = buffer.getLong();
+                    int capacity = buffer.getInt();
+                    long[] times = new long[buffer.getInt()];
+                    for (int i = 0; i < times.length; i++) {
+                        times[i] = buffer.getLong();
+                    }
+                    if (restoreEvents(new IpAddress(high, low), ruleName, eventLifeMillis, capacity, times, now)) {
+                        loaded++;
+                    }
+                } else {
+                    throw new IOException("Corrupted rule snapshot: " + file);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted rule snapshot: " + file, e);
+        }
+        return loaded;
+    }
+
+    private static BlockItem blockItem(long expireMillis, String ruleName) {
+        BlockItem blockItem = new BlockItem();
+        blockItem.setExpireTime(new DateTime(expireMillis));
+        blockItem.setRuleName(ruleName);
+        return blockItem;
+    }
+
+    private boolean restoreEvents(IpAddress ip, String ruleName, long eventLifeMillis, int capacity, long[] times,
+                                  long now) {
+        int ruleId = ruleId(ruleName);
+        Segment segment = segmentOf(ip);
+        lock(segment);
+        try {
+            if (slidingWindow) {
+                RuleEventWindow window = new RuleEventWindow(eventLifeMillis, Math.max(1, Math.max(capacity, times.length)));
+                for (long time : times) {
+                    window.add(time, null, null);
+                }
+                if (window.size(now) == 0) {
+                    return false;
+                }
+                segment.ruleEventWindows.put(ruleId, ip.getHigh(), ip.getLow(), window);
+            } else {
+                RuleEventList ruleEventList = new RuleEventList();
+                ruleEventList.setEventLifeMillis(eventLifeMillis);
+                for (long time : times) {
+                    if (now - time <= eventLifeMillis) {
+                        ruleEventList.add(new RuleEvent(new DateTime(time), null));
+                    }
+                }
+                if (ruleEventList.isEmpty()) {
+                    return false;
+                }
+                segment.ruleEventsData.put(ruleId, ip.getHigh(), ip.getLow(), ruleEventList);
+            }
+            return true;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public int getBlockedIpCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            lock(segment);
+            try {
+                count += segment.blockedIp.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int getRuleEventsCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            lock(segment);
+            try {
+                count += slidingWindow ? segment.ruleEventWindows.size() : segment.ruleEventsData.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Одна из главных функций. Проверка для правила, что лог событий устарел, и его можно сбросить.
+     * Проверяет работу правила вида - не более 3х неверных запросов каждые 10 минут.
+     */
+    private void eventListClear(RuleEventList ruleEventList, long now) {
+        for (Iterator<RuleEvent> iterator = ruleEventList.iterator(); iterator.hasNext(); ) {
+            RuleEvent ruleEvent = iterator.next();
+            long millis = now - ruleEvent.getDate().getMillis();
+            if (millis > ruleEventList.getEventLifeMillis()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public String eventToString(String ruleName, IpAddress ip) {
+        int ruleId = findRuleId(ruleName);
+        if (ruleId < 0) {
+            return "";
+        }
+        Segment segment = segmentOf(ip);
+        lock(segment);
+        try {
+            if (slidingWindow) {
+                RuleEventWindow window = segment.ruleEventWindows.get(ruleId, ip.getHigh(), ip.getLow());
+                return window == null ? "" : window.toAuditString();
+            }
+
+            RuleEventList ruleEventLog = segment.ruleEventsData.get(ruleId, ip.getHigh(), ip.getLow());
+            if (ruleEventLog == null) {
+                return "";
+            }
+
+            StringBuilder result = new StringBuilder();
+            for (RuleEvent ruleEvent : ruleEventLog) {
+                result.append("\n");
+                if (ruleEvent.getReason() != null) {
+                    result.
+                            append(ruleEvent.getReason()).
+                            append(": ");
+                }
+                result.append(ruleEvent.getDate().toString());
+            }
+            return result.toString();
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+}
\ No newline at end of file
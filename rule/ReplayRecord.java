@@ -0,0 +1,95 @@
+package ru.olekstra.common.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import ru.olekstra.common.rules.IpAddress;
+
+
+/*
+ * Запрос воспроизводимого журнала: время, IP и сработавшие правила.
+ * Строка журнала: время в миллисекундах,IP[,правило;правило...], без правил - запрос только проверяется isBlocked
+ */
+public class ReplayRecord {
+
+    private static final String[] NO_RULES = new String[0];
+
+    private final long timeMillis;
+    private final IpAddress ip;
+    private final String[] ruleNames;
+
+    public ReplayRecord(long timeMillis, IpAddress ip, String... ruleNames) {
+        this.timeMillis = timeMillis;
+        this.ip = ip;
+        this.ruleNames = ruleNames;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    public IpAddress getIp() {
+        return ip;
+    }
+
+    public String[] getRuleNames() {
+        return ruleNames;
+    }
+
+    public static ReplayRecord parse(String line) {
+        String[] fields = line.split(",", 3);
+        if (fields.length < 2) {
+            throw new IllegalArgumentException("Cant parse replay record [" + line + "]");
+        }
+        String[] ruleNames = fields.length < 3 || fields[2].isEmpty() ? NO_RULES : fields[2].split(";");
+        return new ReplayRecord(Long.parseLong(fields[0].trim()), IpAddress.parse(fields[1].trim()), ruleNames);
+    }
+
+    /*
+     * Чтение журнала по строке, пустые строки и строки с # пропускаются
+     */
+    public static Iterator<ReplayRecord> read(BufferedReader reader) {
+        return new Iterator<ReplayRecord>() {
+            private ReplayRecord next = readNext();
+
+            private ReplayRecord readNext() {
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        if (!line.isEmpty() && !line.startsWith("#")) {
+                            return parse(line);
+                        }
+                    }
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public ReplayRecord next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                ReplayRecord result = next;
+                next = readNext();
+                return result;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return timeMillis + "," + ip + "," + String.join(";", ruleNames);
+    }
+
+}
@@ -0,0 +1,145 @@
+package ru.olekstra.common.service;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import ru.olekstra.common.rules.IpAddress;
+
+
+/*
+ * Синтетический трафик для RuleReplay. Каждый адрес шлет запросы пуассоновским потоком
+ * со своей интенсивностью, доля запросов hitProbability вызывает срабатывание правила.
+ * Записи генерируются по мере чтения в порядке времени, смеси собираются через mix().
+ */
+public final class ReplayTraffic {
+
+    private ReplayTraffic() {
+    }
+
+    /**
+     * Обычные пользователи: адреса по всему пространству IPv4, запрос раз в 20 секунд, правило на 2% запросов
+     */
+    public static Iterator<ReplayRecord> normal(long seed, int clients, long startMillis, long durationMillis,
+                                                String ruleName) {
+        Random random = new Random(seed);
+        IpAddress[] ips = new IpAddress[clients];
+        for (int i = 0; i < clients; i++) {
+            ips[i] = IpAddress.ofIpv4(random.nextInt());
+        }
+        return poisson(random, ips, 0.05, 0.02, ruleName, startMillis, durationMillis);
+    }
+
+    /**
+     * Сканеры: несколько адресов, 20 запросов в секунду, правило почти на каждый запрос
+     */
+    public static Iterator<ReplayRecord> scanner(long seed, int scanners, long startMillis, long durationMillis,
+                                                 String ruleName) {
+        Random random = new Random(seed);
+        IpAddress[] ips = new IpAddress[scanners];
+        for (int i = 0; i < scanners; i++) {
+            ips[i] = IpAddress.ofIpv4(random.nextInt());
+        }
+        return poisson(random, ips, 20, 0.9, ruleName, startMillis, durationMillis);
+    }
+
+    /**
+     * Ботнет: много адресов в нескольких подсетях /24, запрос в секунду, правило на половину запросов
+     */
+    public static Iterator<ReplayRecord> botnet(long seed, int bots, int subnets, long startMillis,
+                                                long durationMillis, String ruleName) {
+        Random random = new Random(seed);
+        int[] networks = new int[subnets];
+        for (int i = 0; i < subnets; i++) {
+            networks[i] = random.nextInt() & 0xFFFFFF00;
+        }
+        IpAddress[] ips = new IpAddress[bots];
+        for (int i = 0; i < bots; i++) {
+            ips[i] = IpAddress.ofIpv4(networks[random.nextInt(subnets)] | random.nextInt(256));
+        }
+        return poisson(random, ips, 1, 0.5, ruleName, startMillis, durationMillis);
+    }
+
+    /**
+     * @param requestsPerSecond интенсивность запросов одного адреса
+     */
+    public static Iterator<ReplayRecord> poisson(Random random, IpAddress[] ips, double requestsPerSecond,
+                                                 double hitProbability, String ruleName, long startMillis,
+                                                 long durationMillis) {
+        long endMillis = startMillis + durationMillis;
+        double meanGapMillis = 1000 / requestsPerSecond;
+        PriorityQueue<long[]> next = new PriorityQueue<>(Math.max(1, ips.length),
+                (left, right) -> Long.compare(left[0], right[0]));
+        for (int i = 0; i < ips.length; i++) {
+            next.add(new long[]{startMillis + gap(random, meanGapMillis), i});
+        }
+        return new Iterator<ReplayRecord>() {
+            @Override
+            public boolean hasNext() {
+                return !next.isEmpty() && next.peek()[0] < endMillis;
+            }
+
+            @Override
+            public ReplayRecord next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long[] source = next.poll();
+                long time = source[0];
+                IpAddress ip = ips[(int) source[1]];
+                source[0] = time + gap(random, meanGapMillis);
+                next.add(source);
+                return random.nextDouble() < hitProbability
+                        ? new ReplayRecord(time, ip, ruleName) : new ReplayRecord(time, ip);
+            }
+        };
+    }
+
+    private static long gap(Random random, double meanGapMillis) {
+        return Math.max(1, (long) (-Math.log(1 - random.nextDouble()) * meanGapMillis));
+    }
+
+    private static final class Head {
+        private final ReplayRecord record;
+        private final Iterator<ReplayRecord> source;
+
+        private Head(ReplayRecord record, Iterator<ReplayRecord> source) {
+            this.record = record;
+            this.source = source;
+        }
+    }
+
+    /*
+     * Слияние нескольких потоков в один по времени
+     */
+    @SafeVarargs
+    public static Iterator<ReplayRecord> mix(Iterator<ReplayRecord>... sources) {
+        PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(1, sources.length),
+                (left, right) -> Long.compare(left.record.getTimeMillis(), right.record.getTimeMillis()));
+        for (Iterator<ReplayRecord> source : sources) {
+            if (source.hasNext()) {
+                heads.add(new Head(source.next(), source));
+            }
+        }
+        return new Iterator<ReplayRecord>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public ReplayRecord next() {
+                Head head = heads.poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                if (head.source.hasNext()) {
+                    heads.add(new Head(head.source.next(), head.source));
+                }
+                return head.record;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,14 @@
+package ru.olekstra.common.rules;
+
+
+/*
+ * Источник времени движка правил. В приложении - системное время,
+ * при воспроизведении журнала (RuleReplay) и в тестах - VirtualRuleClock
+ */
+public interface RuleClock {
+
+    RuleClock SYSTEM = System::currentTimeMillis;
+
+    long currentTimeMillis();
+
+}
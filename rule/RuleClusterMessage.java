@@ -0,0 +1,107 @@
+package ru.olekstra.common.rules;
+
+
+/*
+ * Сообщение обмена состоянием правил между узлами кластера.
+ * EVENTS - накопленные узлом с последней синхронизации события правила для IP,
+ * BLOCK / BLOCK_PREFIX - блокировка IP / подсети, RESET - сброс событий правила для IP.
+ */
+public class RuleClusterMessage {
+
+    public enum Type {
+        EVENTS,
+        BLOCK,
+        BLOCK_PREFIX,
+        RESET
+    }
+
+    private final String nodeId;
+    private final Type type;
+    private final IpAddress ip;
+    private final IpPrefix prefix;
+    private final String ruleName;
+    private final BlockItem blockItem;
+    private final int count;
+    private final long eventLifeMillis;
+    private final int capacity;
+
+    private RuleClusterMessage(String nodeId, Type type, IpAddress ip, IpPrefix prefix, String ruleName,
+                               BlockItem blockItem, int count, long eventLifeMillis, int capacity) {
+        this.nodeId = nodeId;
+        this.type = type;
+        this.ip = ip;
+        this.prefix = prefix;
+        this.ruleName = ruleName;
+        this.blockItem = blockItem;
+        this.count = count;
+        this.eventLifeMillis = eventLifeMillis;
+        this.capacity = capacity;
+    }
+
+    public static RuleClusterMessage events(String nodeId, IpAddress ip, String ruleName, int count,
+                                            long eventLifeMillis, int capacity) {
+        return new RuleClusterMessage(nodeId, Type.EVENTS, ip, null, ruleName, null, count, eventLifeMillis, capacity);
+    }
+
+    public static RuleClusterMessage block(String nodeId, IpAddress ip, BlockItem blockItem) {
+        return new RuleClusterMessage(nodeId, Type.BLOCK, ip, null, blockItem.getRuleName(), blockItem, 0, 0, 0);
+    }
+
+    public static RuleClusterMessage blockPrefix(String nodeId, IpPrefix prefix, BlockItem blockItem) {
+        return new RuleClusterMessage(nodeId, Type.BLOCK_PREFIX, null, prefix, blockItem.getRuleName(), blockItem,
+                0, 0, 0);
+    }
+
+    public static RuleClusterMessage reset(String nodeId, IpAddress ip, String ruleName) {
+        return new RuleClusterMessage(nodeId, Type.RESET, ip, null, ruleName, null, 0, 0, 0);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public IpAddress getIp() {
+        return ip;
+    }
+
+    public IpPrefix getPrefix() {
+        return prefix;
+    }
+
+    public String getRuleName() {
+        return ruleName;
+    }
+
+    public BlockItem getBlockItem() {
+        return blockItem;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getEventLifeMillis() {
+        return eventLifeMillis;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public String toString() {
+        return "RuleClusterMessage{" +
+                "nodeId='" + nodeId + '\'' +
+                ", type=" + type +
+                ", ip=" + ip +
+                ", prefix=" + prefix +
+                ", ruleName='" + ruleName + '\'' +
+                ", count=" + count +
+                '}';
+    }
+
+}
\ No newline at end of file
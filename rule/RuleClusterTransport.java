@@ -0,0 +1,18 @@
+package ru.olekstra.common.rules;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+
+/*
+ * Канал обмена сообщениями ClusterRuleEventStore между узлами.
+ * Сообщение, опубликованное узлом, доставляется всем подписчикам, в том числе самому узлу -
+ * свои сообщения ClusterRuleEventStore отбрасывает по nodeId.
+ */
+public interface RuleClusterTransport {
+
+    void publish(List<RuleClusterMessage> batch);
+
+    void subscribe(Consumer<List<RuleClusterMessage>> listener);
+
+}
\ No newline at end of file
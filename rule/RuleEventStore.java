@@ -1,139 +1,64 @@
 package ru.olekstra.common.rules;
 
-import org.joda.time.DateTime;
+import java.util.List;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/*
+ * Хранилище состояния правил: события срабатывания правил по IP, заблокированные IP и подсети.
+ * LocalRuleEventStore - состояние в памяти одного узла,
+ * ClusterRuleEventStore - состояние, согласованное между узлами кластера,
+ * SketchRuleEventStore - приближенный учет с ограниченной памятью поверх другого хранилища.
+ */
+public interface RuleEventStore {
 
-public class RuleEventStore {
+    /**
+     * @return количество заблокированных адресов в подсети ip с учетом этого, 0 - эскалация выключена
+     */
+    int block(IpAddress ip, BlockItem blockItem);
+
+    BlockedIpState tryReleaseBlock(IpAddress ip);
+
+    void blockPrefix(IpPrefix prefix, BlockItem blockItem);
+
+    boolean isPrefixBlocked(IpAddress ip);
+
+    void eventReset(String ruleName, IpAddress ip);
+
+    RuleEventList getRuleEventsData(String ruleName, IpAddress ip);
+
+    // Есть ли актуальные события правила для ip
+    boolean hasEvents(String ruleName, IpAddress ip);
 
-    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-    private final Lock readLock = readWriteLock.readLock();
-    private final Lock writeLock = readWriteLock.writeLock();
+    /**
+     * @return количество актуальных событий правила для ip, с учетом добавленного
+     */
+    int eventAdd(IpAddress ip, OlekstraRule rule);
+
+    /**
+     * Добавление событий нескольких правил одного запроса за одно обращение к хранилищу
+     *
+     * @return количество актуальных событий каждого правила, в порядке rules
+     */
+    int[] eventAddAll(IpAddress ip, List<OlekstraRule> rules);
 
-    // Заблокированные IP. value - дата после которой блокировку можно снять и имя события
-    private Map<String, BlockItem> blockedIp = new HashMap<>();
+    String eventToString(String ruleName, IpAddress ip);
 
-    /* Массив данных о срабатывании правил (о событиях).
-     * Ключ массива собыий срабатывания правил - название правила (класс) + IP клиента
-     * Срабатывания правила (событие), хранятся внутри объекта RuleEventList
-     * RuleEventList - хранит события правила, содержи время жизни события
+    /**
+     * Фоновая очистка, за один вызов просматривается ограниченная часть хранилища
+     *
+     * @return IP, с которых снята блокировка
      */
-    private Map<RuleEventIpPair, RuleEventList> ruleEventsData = new HashMap<>();
-
-    public void block(String ip, BlockItem blockItem) {
-        writeLock.lock();
-        try {
-            blockedIp.put(ip, blockItem);
-        } finally {
-            writeLock.unlock();
-        }
-    }
-
-    public BlockedIpState tryReleaseBlock(String ip) {
-        writeLock.lock();
-        try {
-            BlockItem blockItem = blockedIp.get(ip);
-            if (blockItem == null) {
-                return BlockedIpState.UNBLOCKED;
-            }
-            if (blockItem.getExpireTime().isBefore(new DateTime())) {
-                ruleEventsData.remove(new RuleEventIpPair(blockItem.getRuleName(), ip));
-                blockedIp.remove(ip);
-                return BlockedIpState.RELEASED;
-            }
-            return BlockedIpState.BLOCKED;
-        } finally {
-            writeLock.unlock();
-        }
-    }
-
-    public void eventReset(String ruleName, String ip) {
-        writeLock.lock();
-        try {
-            ruleEventsData.remove(new RuleEventIpPair(ruleName, ip));
-        } finally {
-            writeLock.unlock();
-        }
-    }
-
-    public RuleEventList getRuleEventsData(String ruleName, String ip) {
-        readLock.lock();
-        try {
-            return ruleEventsData.get(new RuleEventIpPair(ruleName, ip));
-        } finally {
-            readLock.unlock();
-        }
-    }
-
-    public int eventAdd(String ip, OlekstraRule rule) {
-        DateTime date = new DateTime();
-        RuleEventList ruleEventList = null;
-        RuleEventIpPair key = new RuleEventIpPair(rule.getName(), ip);
-
-        writeLock.lock();
-        try {
-            ruleEventList = ruleEventsData.get(key);
-            if (ruleEventList == null) {
-                ruleEventList = new RuleEventList();
-                ruleEventList.setEventLifeMillis(rule.getEventLifeMillis());
-                ruleEventsData.put(key, ruleEventList);
-            } else {
-                eventListClear(ruleEventList, date);
-            }
-
-            String reason = rule.getReasonDescription() == null ? "" : rule.getReasonDescription() +
-                    (rule.getReason() == null ? "" : ": " + rule.getReason());
-            ruleEventList.add(new RuleEvent(date, reason));
-        } finally {
-            writeLock.unlock();
-        }
-        return ruleEventList.size();
-    }
-
-    /*
-     * Одна из главных функций. Проверка для правила, что лог событий устарел, и его можно сбросить.
-     * Проверяет работу правила вида - не более 3х неверных запросов каждые 10 минут.
+    List<IpAddress> sweep(int batchSize);
+
+    /**
+     * @return подсети, с которых снята блокировка
      */
-    private void eventListClear(RuleEventList ruleEventList, DateTime date) {
-        for (Iterator<RuleEvent> iterator = ruleEventList.iterator(); iterator.hasNext(); ) {
-            RuleEvent ruleEvent = iterator.next();
-            long millis = date.getMillis() - ruleEvent.getDate().getMillis();
-            if (millis > ruleEventList.getEventLifeMillis()) {
-                iterator.remove();
-            }
-        }
-    }
-
-    public String eventToString(String ruleName, String ip) {
-        RuleEventList ruleEventLog = null;
-        readLock.lock();
-        try {
-            ruleEventLog = this.ruleEventsData.get(new RuleEventIpPair(ruleName, ip));
-        } finally {
-            readLock.unlock();
-        }
-
-        if (ruleEventLog == null) {
-            return "";
-        }
-
-        StringBuilder result = new StringBuilder();
-        for (RuleEvent ruleEvent : ruleEventLog) {
-            result.append("\n");
-            if (ruleEvent.getReason() != null) {
-                result.
-                        append(ruleEvent.getReason()).
-                        append(": ");
-            }
-            result.append(ruleEvent.getDate().toString());
-        }
-        return result.toString();
-    }
+    List<IpPrefix> sweepPrefixes();
+
+    int getBlockedIpCount();
+
+    int getBlockedPrefixCount();
+
+    int getRuleEventsCount();
 
 }
\ No newline at end of file
@@ -0,0 +1,143 @@
+package ru.olekstra.common.rules;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+
+/*
+ * Двоичный снимок состояния LocalRuleEventStore для быстрого перезапуска.
+ * Запись идет через FileChannel во временный файл с последующей атомарной заменой,
+ * чтение - через отображение файла в память (MappedByteBuffer).
+ *
+ * Формат: MAGIC, VERSION, время записи, затем записи вида [тип][данные], завершающиеся END.
+ * BLOCK        high, low, expireMillis, ruleName
+ * BLOCK_PREFIX high, low, length, expireMillis, ruleName
+ * EVENTS       high, low, ruleName, eventLifeMillis, capacity, count, count x timeMillis
+ * Строки - длина (short) и байты UTF-8.
+ */
+class RuleEventStoreSnapshot {
+
+    static final int MAGIC = 0x52455331;
+    static final int VERSION = 1;
+
+    static final byte BLOCK = 1;
+    static final byte BLOCK_PREFIX = 2;
+    static final byte EVENTS = 3;
+    static final byte END = 0;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /*
+     * Последовательная запись снимка с буферизацией
+     */
+    static class Writer implements AutoCloseable {
+        private final Path file;
+        private final Path tempFile;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Writer(Path file, long now) throws IOException {
+            this.file = file;
+            this.tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+            this.channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            ensure(16);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(now);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void putString(String value) throws IOException {
+            byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+            ensure(2 + bytes.length);
+            buffer.putShort((short) bytes.length).put(bytes);
+        }
+
+        void block(long high, long low, long expireMillis, String ruleName) throws IOException {
+            ensure(25);
+            buffer.put(BLOCK).putLong(high).putLong(low).putLong(expireMillis);
+            putString(ruleName);
+        }
+
+        void blockPrefix(IpPrefix prefix, long expireMillis, String ruleName) throws IOException {
+            ensure(29);
+            buffer.put(BLOCK_PREFIX).putLong(prefix.getHigh()).putLong(prefix.getLow()).putInt(prefix.getLength())
+                    .putLong(expireMillis);
+            putString(ruleName);
+        }
+
+        void eventsStart(long high, long low, String ruleName, long eventLifeMillis, int capacity, int count)
+                throws IOException {
+            ensure(17);
+            buffer.put(EVENTS).putLong(high).putLong(low);
+            putString(ruleName);
+            ensure(16);
+            buffer.putLong(eventLifeMillis).putInt(capacity).putInt(count);
+        }
+
+        void eventTime(long timeMillis) throws IOException {
+            ensure(8);
+            buffer.putLong(timeMillis);
+        }
+
+        /*
+         * Завершает снимок и заменяет им прежний файл
+         */
+        void commit() throws IOException {
+            ensure(1);
+            buffer.put(END);
+            flush();
+            channel.force(false);
+            channel.close();
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel.isOpen()) {
+                channel.close();
+                Files.deleteIfExists(tempFile);
+            }
+        }
+    }
+
+    /*
+     * Файл снимка, отображенный в память
+     */
+    static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 16 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unsupported rule snapshot: " + file);
+            }
+            buffer.getLong();
+            return buffer;
+        }
+    }
+
+    static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,141 @@
+package ru.olekstra.common.rules;
+
+import org.joda.time.DateTime;
+
+
+/*
+ * Скользящее окно событий правила для одного IP с фиксированным объемом памяти.
+ * Время событий хранится в кольцевом буфере long[] (epoch millis), в порядке поступления.
+ * Емкость окна - максимальный лимит правила + 1: больше событий для решения SLEEP/BLOCK не требуется,
+ * при переполнении вытесняется самое старое событие.
+ * Устаревание событий снимается с головы буфера, поэтому добавление события - амортизированное O(1).
+ * Не потокобезопасен, синхронизация на стороне RuleEventStore.
+ */
+public class RuleEventWindow {
+
+    private final long eventLifeMillis;
+    private final long[] times;
+    // описание и причина хранятся раздельно, строка для аудита собирается только в toAuditString
+    private final String[] reasonDescriptions;
+    private final String[] reasons;
+
+    private int head;
+    private int size;
+
+    public RuleEventWindow(long eventLifeMillis, int capacity) {
+        this.eventLifeMillis = eventLifeMillis;
+        this.times = new long[capacity];
+        this.reasonDescriptions = new String[capacity];
+        this.reasons = new String[capacity];
+    }
+
+    /*
+     * Емкость окна для правила, достаточная для проверки limitToSleep и limitToBlock
+     */
+    public static int capacityOf(OlekstraRule rule) {
+        int limit = 0;
+        if (rule.getLimitToSleep() != null) {
+            limit = Math.max(limit, rule.getLimitToSleep());
+        }
+        if (rule.getLimitToBlock() != null) {
+            limit = Math.max(limit, rule.getLimitToBlock());
+        }
+        return limit + 1;
+    }
+
+    public long getEventLifeMillis() {
+        return eventLifeMillis;
+    }
+
+    /**
+     * Добавляет событие и возвращает количество актуальных событий в окне
+     */
+    public int add(long now, String reasonDescription, String reason) {
+        expire(now);
+        if (size == times.length) {
+            head = next(head);
+            size--;
+        }
+        int tail = (head + size) % times.length;
+        times[tail] = now;
+        reasonDescriptions[tail] = reasonDescription;
+        reasons[tail] = reason;
+        size++;
+        return size;
+    }
+
+    public int size(long now) {
+        expire(now);
+        return size;
+    }
+
+    private void expire(long now) {
+        while (size > 0 && now - times[head] > eventLifeMillis) {
+            reasonDescriptions[head] = null;
+            reasons[head] = null;
+            head = next(head);
+            size--;
+        }
+    }
+
+    private int next(int index) {
+        return index + 1 == times.length ? 0 : index + 1;
+    }
+
+    int capacity() {
+        return times.length;
+    }
+
+    /*
+     * Копия окна с другой емкостью, например после загрузки снимка или изменения лимитов правила
+     */
+    RuleEventWindow withCapacity(int capacity) {
+        RuleEventWindow window = new RuleEventWindow(eventLifeMillis, capacity);
+        for (int i = 0, index = head; i < size; i++, index = next(index)) {
+            window.add(times[index], reasonDescriptions[index], reasons[index]);
+        }
+        return window;
+    }
+
+    // Количество событий без проверки устаревания и время i-го по старшинству события, для снимка состояния
+    int count() {
+        return size;
+    }
+
+    long timeAt(int i) {
+        return times[(head + i) % times.length];
+    }
+
+    /*
+     * Копия окна в виде RuleEventList, для совместимости с RuleEventStore#getRuleEventsData
+     */
+    public RuleEventList toRuleEventList() {
+        RuleEventList ruleEventList = new RuleEventList();
+        ruleEventList.setEventLifeMillis(eventLifeMillis);
+        for (int i = 0, index = head; i < size; i++, index = next(index)) {
+            ruleEventList.add(new RuleEvent(new DateTime(times[index]), reasonOf(index)));
+        }
+        return ruleEventList;
+    }
+
+    /*
+     * Формат совпадает с RuleEventStore#eventToString для списка событий
+     */
+    public String toAuditString() {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0, index = head; i < size; i++, index = next(index)) {
+            result.append("\n");
+            result.
+                    append(reasonOf(index)).
+                    append(": ");
+            result.append(new DateTime(times[index]).toString());
+        }
+        return result.toString();
+    }
+
+    private String reasonOf(int index) {
+        return reasonDescriptions[index] == null ? "" : reasonDescriptions[index] +
+                (reasons[index] == null ? "" : ": " + reasons[index]);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,180 @@
+package ru.olekstra.common.rules;
+
+
+/*
+ * Хэш-таблица с открытой адресацией (линейное пробирование) по ключу id правила + IP.
+ * Ключи лежат в примитивных массивах, поиск и обновление существующего ключа не создают объектов.
+ * Удаление - обратным сдвигом, без маркеров удаленных записей.
+ * Таблица сжимается, когда записей меньше 1/8 емкости: сразу в remove, а при обходе с removeAt -
+ * вызовом shrink после обхода, чтобы слоты не сдвигались под курсором.
+ * Не потокобезопасна, синхронизация на стороне RuleEventStore.
+ */
+class RuleIpMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private int[] rules;
+    private long[] highs;
+    private long[] lows;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    RuleIpMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        rules = new int[capacity];
+        highs = new long[capacity];
+        lows = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(int rule, long high, long low) {
+        long h = (high ^ Long.rotateLeft(low, 29)) * 0xC2B2AE3D27D4EB4FL + rule;
+        h = (h ^ (h >>> 31)) * 0x94D049BB133111EBL;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    private int slotOf(int rule, long high, long low) {
+        int slot = hash(rule, high, low) & mask;
+        while (values[slot] != null) {
+            if (rules[slot] == rule && highs[slot] == high && lows[slot] == low) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return ~slot;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int rule, long high, long low) {
+        int slot = slotOf(rule, high, low);
+        return slot < 0 ? null : (V) values[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(int rule, long high, long low, V value) {
+        int slot = slotOf(rule, high, low);
+        if (slot >= 0) {
+            V previous = (V) values[slot];
+            values[slot] = value;
+            return previous;
+        }
+        if (size + 1 > values.length * LOAD_FACTOR) {
+            rehash(values.length * 2);
+            slot = slotOf(rule, high, low);
+        }
+        slot = ~slot;
+        rules[slot] = rule;
+        highs[slot] = high;
+        lows[slot] = low;
+        values[slot] = value;
+        size++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(int rule, long high, long low) {
+        int slot = slotOf(rule, high, low);
+        if (slot < 0) {
+            return null;
+        }
+        V previous = (V) values[slot];
+        removeAt(slot);
+        shrink();
+        return previous;
+    }
+
+    /**
+     * Удаление по номеру слота, для обхода таблицы. Таблица не сжимается, после обхода - {@link #shrink}.
+     *
+     * @return true если на место удаленной записи сдвинута следующая, слот нужно просмотреть повторно
+     */
+    boolean removeAt(int slot) {
+        int gap = slot;
+        int i = slot;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == null) {
+                break;
+            }
+            int ideal = hash(rules[i], highs[i], lows[i]) & mask;
+            // запись можно сдвинуть в пустой слот, если он не дальше от нее чем ее собственный слот
+            if (((i - ideal) & mask) >= ((i - gap) & mask)) {
+                rules[gap] = rules[i];
+                highs[gap] = highs[i];
+                lows[gap] = lows[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = null;
+        size--;
+        return gap != slot;
+    }
+
+    /**
+     * Сжатие таблицы, в которой записей меньше 1/8 емкости: емкость уменьшается вдвое, пока это так.
+     * Номера слотов после сжатия меняются.
+     *
+     * @return true - таблица сжата
+     */
+    boolean shrink() {
+        int capacity = values.length;
+        while (capacity > MIN_CAPACITY && size < capacity / 8) {
+            capacity >>= 1;
+        }
+        if (capacity == values.length) {
+            return false;
+        }
+        rehash(capacity);
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldRules = rules;
+        long[] oldHighs = highs;
+        long[] oldLows = lows;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int slot = 0; slot < oldValues.length; slot++) {
+            if (oldValues[slot] != null) {
+                int target = ~slotOf(oldRules[slot], oldHighs[slot], oldLows[slot]);
+                rules[target] = oldRules[slot];
+                highs[target] = oldHighs[slot];
+                lows[target] = oldLows[slot];
+                values[target] = oldValues[slot];
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return values.length;
+    }
+
+    int ruleAt(int slot) {
+        return rules[slot];
+    }
+
+    long highAt(int slot) {
+        return highs[slot];
+    }
+
+    long lowAt(int slot) {
+        return lows[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,163 @@
+package ru.olekstra.common.rules;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+ * Счетчики и задержки движка правил. Счетчики на LongAdder, задержки в LatencyHistogram,
+ * запись без блокировок и без выделения памяти (кроме первого события нового правила).
+ * Значения накапливаются с запуска, снимок snapshot() опрашивается снаружи (JMX, актуатор, лог).
+ * Замер задержек стоит два вызова System.nanoTime(), его можно выключить, счетчики работают всегда.
+ */
+public class RuleMetrics {
+
+    private final boolean latencyEnabled;
+
+    private final ConcurrentMap<String, LongAdder> eventsByRule = new ConcurrentHashMap<>();
+    private final LongAdder sleeps = new LongAdder();
+    private final LongAdder blocks = new LongAdder();
+    private final LongAdder unblocks = new LongAdder();
+
+    private final LatencyHistogram onEventLatency = new LatencyHistogram();
+    private final LatencyHistogram isBlockedLatency = new LatencyHistogram();
+
+    public RuleMetrics(boolean latencyEnabled) {
+        this.latencyEnabled = latencyEnabled;
+    }
+
+    public void event(String ruleName) {
+        LongAdder counter = eventsByRule.get(ruleName);
+        if (counter == null) {
+            counter = eventsByRule.computeIfAbsent(ruleName, name -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    public void sleep() {
+        sleeps.increment();
+    }
+
+    public void block() {
+        blocks.increment();
+    }
+
+    public void unblock() {
+        unblocks.increment();
+    }
+
+    // Начало замера для onEventFinished / isBlockedFinished
+    public long start() {
+        return latencyEnabled ? System.nanoTime() : 0;
+    }
+
+    public void onEventFinished(long start) {
+        if (latencyEnabled) {
+            onEventLatency.recordSince(start);
+        }
+    }
+
+    public void isBlockedFinished(long start) {
+        if (latencyEnabled) {
+            isBlockedLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * @param store    хранилище, из которого берутся текущие размеры
+     * @param lockWait задержки ожидания блокировки хранилища, null - не измеряются
+     */
+    public Snapshot snapshot(RuleEventStore store, LatencyHistogram lockWait) {
+        Map<String, Long> events = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : eventsByRule.entrySet()) {
+            events.put(entry.getKey(), entry.getValue().sum());
+        }
+        return new Snapshot(Collections.unmodifiableMap(events), sleeps.sum(), blocks.sum(), unblocks.sum(),
+                store.getRuleEventsCount(), store.getBlockedIpCount(), store.getBlockedPrefixCount(),
+                onEventLatency.summary(), isBlockedLatency.summary(),
+                lockWait == null ? null : lockWait.summary());
+    }
+
+    public static final class Snapshot {
+        private final Map<String, Long> eventsByRule;
+        private final long sleeps;
+        private final long blocks;
+        private final long unblocks;
+        private final int trackedIps;
+        private final int blockedIps;
+        private final int blockedPrefixes;
+        private final LatencyHistogram.Summary onEventLatency;
+        private final LatencyHistogram.Summary isBlockedLatency;
+        private final LatencyHistogram.Summary lockWait;
+
+        private Snapshot(Map<String, Long> eventsByRule, long sleeps, long blocks, long unblocks,
+                         int trackedIps, int blockedIps, int blockedPrefixes,
+                         LatencyHistogram.Summary onEventLatency, LatencyHistogram.Summary isBlockedLatency,
+                         LatencyHistogram.Summary lockWait) {
+            this.eventsByRule = eventsByRule;
+            this.sleeps = sleeps;
+            this.blocks = blocks;
+            this.unblocks = unblocks;
+            this.trackedIps = trackedIps;
+            this.blockedIps = blockedIps;
+            this.blockedPrefixes = blockedPrefixes;
+            this.onEventLatency = onEventLatency;
+            this.isBlockedLatency = isBlockedLatency;
+            this.lockWait = lockWait;
+        }
+
+        public Map<String, Long> getEventsByRule() {
+            return eventsByRule;
+        }
+
+        public long getSleeps() {
+            return sleeps;
+        }
+
+        public long getBlocks() {
+            return blocks;
+        }
+
+        public long getUnblocks() {
+            return unblocks;
+        }
+
+        // Количество пар правило + IP с событиями
+        public int getTrackedIps() {
+            return trackedIps;
+        }
+
+        public int getBlockedIps() {
+            return blockedIps;
+        }
+
+        public int getBlockedPrefixes() {
+            return blockedPrefixes;
+        }
+
+        public LatencyHistogram.Summary getOnEventLatency() {
+            return onEventLatency;
+        }
+
+        public LatencyHistogram.Summary getIsBlockedLatency() {
+            return isBlockedLatency;
+        }
+
+        // Только ожидание занятой блокировки сегмента, захват свободной не замеряется
+        public LatencyHistogram.Summary getLockWait() {
+            return lockWait;
+        }
+
+        @Override
+        public String toString() {
+            return "events=" + eventsByRule + " sleeps=" + sleeps + " blocks=" + blocks + " unblocks=" + unblocks +
+                    " trackedIps=" + trackedIps + " blockedIps=" + blockedIps + " blockedPrefixes=" + blockedPrefixes +
+                    " onEvent[" + onEventLatency + "] isBlocked[" + isBlockedLatency + "] lockWait[" + lockWait + "]";
+        }
+    }
+
+}
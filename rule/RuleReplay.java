@@ -0,0 +1,188 @@
+package ru.olekstra.common.service;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import ru.olekstra.common.rules.IpAddress;
+import ru.olekstra.common.rules.LatencyHistogram;
+import ru.olekstra.common.rules.OlekstraRule;
+import ru.olekstra.common.rules.RuleMetrics;
+import ru.olekstra.common.rules.VirtualRuleClock;
+import ru.olekstra.domain.AccessRulesEvents;
+
+
+/*
+ * Воспроизведение журнала запросов через RuleService вне приложения, для подбора лимитов правил
+ * и сравнения вариантов RuleEventStore. Время движка берется из отметок журнала (VirtualRuleClock),
+ * задержки SLEEP не выполняются, только учитываются. Каждый запрос, как в приложении,
+ * сначала проверяется isBlocked, заблокированный запрос до правил не доходит.
+ * Фоновая очистка запускается раз в sweepIntervalMillis времени журнала.
+ */
+public class RuleReplay {
+
+    private final Map<String, OlekstraRule> rules;
+    private final boolean slidingWindow;
+    private final boolean sketchEnabled;
+    private final long sweepIntervalMillis;
+
+    /**
+     * @param rules правила по имени, имена из журнала должны быть среди них
+     */
+    public RuleReplay(Map<String, OlekstraRule> rules, boolean slidingWindow, boolean sketchEnabled,
+                      long sweepIntervalMillis) {
+        this.rules = rules;
+        this.slidingWindow = slidingWindow;
+        this.sketchEnabled = sketchEnabled;
+        this.sweepIntervalMillis = sweepIntervalMillis;
+    }
+
+    public Report run(Iterator<ReplayRecord> records) throws Exception {
+        if (!records.hasNext()) {
+            throw new IllegalArgumentException("Replay log is empty");
+        }
+        Set<String> sleptIps = new ConcurrentSkipListSet<>();
+        Set<String> blockedIps = new ConcurrentSkipListSet<>();
+        AccessRulesEventsWriter.Sink audit = batch -> {
+            for (AccessRulesEvents event : batch) {
+                if (AccessRulesEvents.SLEEP_TYPE.equals(event.getType())) {
+                    sleptIps.add(event.getIp());
+                } else if (AccessRulesEvents.BLOCK_TYPE.equals(event.getType())) {
+                    blockedIps.add(event.getIp());
+                }
+            }
+            return 0;
+        };
+
+        ReplayRecord record = records.next();
+        VirtualRuleClock clock = new VirtualRuleClock(record.getTimeMillis());
+        RuleService ruleService = RuleService.standalone(clock, audit, slidingWindow, sketchEnabled);
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        LatencyHistogram latency = new LatencyHistogram();
+        List<OlekstraRule> recordRules = new ArrayList<>();
+
+        long count = 0;
+        long rejected = 0;
+        long peakHeap = 0;
+        long nextSweep = record.getTimeMillis() + sweepIntervalMillis;
+        long start = System.nanoTime();
+        while (true) {
+            clock.set(record.getTimeMillis());
+            if (record.getTimeMillis() >= nextSweep) {
+                ruleService.sweepExpired();
+                nextSweep = record.getTimeMillis() + sweepIntervalMillis;
+            }
+            recordRules.clear();
+            for (String ruleName : record.getRuleNames()) {
+                OlekstraRule rule = rules.get(ruleName);
+                if (rule == null) {
+                    throw new IllegalArgumentException("Unknown rule in replay log [" + ruleName + "]");
+                }
+                recordRules.add(rule);
+            }
+
+            IpAddress ip = record.getIp();
+            long callStart = System.nanoTime();
+            if (ruleService.isBlocked(ip)) {
+                rejected++;
+            } else if (!recordRules.isEmpty()) {
+                ruleService.applyRules(ip, recordRules);
+            }
+            latency.recordSince(callStart);
+
+            if (++count % 10000 == 0) {
+                peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+            }
+            if (!records.hasNext()) {
+                break;
+            }
+            record = records.next();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+        RuleMetrics.Snapshot metrics = ruleService.getMetrics();
+        ruleService.destroy();
+
+        return new Report(count, rejected, elapsedNanos, latency.summary(), peakHeap,
+                Collections.unmodifiableSet(sleptIps), Collections.unmodifiableSet(blockedIps), metrics);
+    }
+
+    public static final class Report {
+        private final long records;
+        private final long rejected;
+        private final long elapsedNanos;
+        private final LatencyHistogram.Summary latency;
+        private final long peakHeapBytes;
+        private final Set<String> sleptIps;
+        private final Set<String> blockedIps;
+        private final RuleMetrics.Snapshot metrics;
+
+        private Report(long records, long rejected, long elapsedNanos, LatencyHistogram.Summary latency,
+                       long peakHeapBytes, Set<String> sleptIps, Set<String> blockedIps,
+                       RuleMetrics.Snapshot metrics) {
+            this.records = records;
+            this.rejected = rejected;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+            this.peakHeapBytes = peakHeapBytes;
+            this.sleptIps = sleptIps;
+            this.blockedIps = blockedIps;
+            this.metrics = metrics;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        // Запросы, отклоненные isBlocked
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getRecordsPerSecond() {
+            return elapsedNanos == 0 ? 0 : records * 1e9 / elapsedNanos;
+        }
+
+        // Задержка isBlocked + правила одного запроса в наносекундах
+        public LatencyHistogram.Summary getLatency() {
+            return latency;
+        }
+
+        // Наибольший занятый heap по замерам раз в 10000 записей, включает мусор между сборками
+        public long getPeakHeapBytes() {
+            return peakHeapBytes;
+        }
+
+        public Set<String> getSleptIps() {
+            return sleptIps;
+        }
+
+        // Заблокированные адреса и подсети
+        public Set<String> getBlockedIps() {
+            return blockedIps;
+        }
+
+        public RuleMetrics.Snapshot getMetrics() {
+            return metrics;
+        }
+
+        @Override
+        public String toString() {
+            return "records=" + records + " rejected=" + rejected + " millis=" + elapsedNanos / 1000000 +
+                    " recordsPerSecond=" + (long) getRecordsPerSecond() + " latency[" + latency + "]" +
+                    " peakHeapMB=" + peakHeapBytes / (1024 * 1024) +
+                    " slept=" + sleptIps.size() + " blocked=" + blockedIps.size();
+        }
+    }
+
+}
@@ -1,14 +1,38 @@
 package ru.olekstra.common.service;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
 
 import org.dozer.Mapper;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import ru.olekstra.awsutils.AWSAccess;
@@ -20,16 +44,125 @@ import ru.olekstra.common.helper.DozerHelper;
 import ru.olekstra.common.rules.BlockedIpState;
 import ru.olekstra.common.rules.RuleEventStore;
 import ru.olekstra.common.rules.BlockItem;
+import ru.olekstra.common.rules.ClusterRuleEventStore;
+import ru.olekstra.common.rules.CoarseRuleClock;
+import ru.olekstra.common.rules.IpAddress;
+import ru.olekstra.common.rules.IpPrefix;
+import ru.olekstra.common.rules.LocalRuleEventStore;
 import ru.olekstra.common.rules.OlekstraRule;
+import ru.olekstra.common.rules.RuleClock;
+import ru.olekstra.common.rules.RuleClusterTransport;
 import ru.olekstra.common.rules.RuleEventList;
+import ru.olekstra.common.rules.RuleMetrics;
+import ru.olekstra.common.rules.SketchRuleEventStore;
+import ru.olekstra.common.rules.SubnetBlockRule;
 import ru.olekstra.domain.AccessRulesEvents;
+import ru.olekstra.domain.dto.AccessRuleEvent;
 
 @Service
 public class RuleService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RuleService.class);
+
+    // Кэш страниц журнала закрытых месяцев, срок жизни и размер задаются настройкой кэша
+    public static final String BLOCK_LOG_CACHE = "accessRulesEventsLog";
+
     private final DateTimeFormatter periodFormatter = DateTimeFormat.forPattern("yyyyMM");
 
-    private RuleEventStore ruleEventStore = new RuleEventStore();
+    private RuleEventStore ruleEventStore;
+
+    // Счетчики и задержки движка правил, см. getMetrics()
+    private RuleMetrics metrics;
+    @Value("#{'${rule.metrics.latency:true}'}")
+    private boolean metricsLatency;
+
+    /* Общее состояние правил для нескольких узлов приложения.
+     * Включается, если в контексте есть RuleClusterTransport, иначе состояние только локальное
+     */
+    @Autowired(required = false)
+    private RuleClusterTransport ruleClusterTransport;
+    @Value("#{'${rule.cluster.node:}'}")
+    private String clusterNodeId;
+    private ClusterRuleEventStore clusterStore;
+    private LocalRuleEventStore localStore;
+
+    /* Режим ограниченной памяти при распределенной атаке, см. SketchRuleEventStore.
+     * Точный учет заводится только для IP с частыми событиями
+     */
+    @Value("#{'${rule.sketch.enabled:false}'}")
+    private boolean sketchEnabled;
+    @Value("#{'${rule.sketch.depth:4}'}")
+    private int sketchDepth;
+    @Value("#{'${rule.sketch.width:16384}'}")
+    private int sketchWidth;
+    @Value("#{'${rule.sketch.topk:1000}'}")
+    private int sketchTopK;
+    @Value("#{'${rule.sketch.promote:0.5}'}")
+    private double sketchPromoteFraction;
+
+    // Файл снимка состояния правил для перезапуска, пусто - снимок не пишется
+    @Value("#{'${rule.snapshot.file:}'}")
+    private String snapshotFile;
+
+    // Общий планировщик задержанных ответов для onEventAsync, поток запроса не занимается на время задержки
+    private ScheduledExecutorService throttleScheduler;
+    // Незавершенные задержки onEventAsync, при остановке завершаются с ошибкой, а не остаются висеть
+    private final Set<CompletableFuture<Void>> pendingDelays = ConcurrentHashMap.newKeySet();
 
+    // Фоновая пакетная запись журнала AccessRulesEvents, запросы не ждут DynamoDB
+    private AccessRulesEventsWriter auditWriter;
+    /* Получатель журнала. Если не задан - DynamoDbAccessRulesEventsSink (BatchWriteItem) при наличии
+     * DynamoDBMapper, иначе DynamodbService по одному событию
+     */
+    @Autowired(required = false)
+    private AccessRulesEventsWriter.Sink auditSink;
+    @Value("#{'${rule.audit.batch.attempts:3}'}")
+    private int auditBatchAttempts;
+    @Value("#{'${rule.audit.batch.backoff:100}'}")
+    private long auditBatchBackoff;
+
+    /* Время движка правил. Если бин не задан - CoarseRuleClock с точностью rule.clock.resolution,
+     * 0 - системное время при каждом обращении
+     */
+    @Autowired(required = false)
+    private RuleClock ruleClock;
+    @Value("#{'${rule.clock.resolution:10}'}")
+    private long clockResolution;
+    private CoarseRuleClock coarseClock;
+    /* Последний ключ журнала (period + rangeKey), миллисекунды. Записи одной миллисекунды
+     * получают следующие миллисекунды, иначе они затирают друг друга в AccessRulesEvents
+     */
+    private final AtomicLong lastAuditMillis = new AtomicLong();
+
+    @Value("#{'${rule.audit.queue.capacity:10000}'}")
+    private int auditQueueCapacity;
+    @Value("#{'${rule.audit.flush.size:25}'}")
+    private int auditFlushSize;
+    @Value("#{'${rule.audit.flush.interval:1000}'}")
+    private long auditFlushInterval;
+    @Value("#{'${rule.audit.overflow:DROP_NEWEST}'}")
+    private AccessRulesEventsWriter.OverflowPolicy auditOverflowPolicy;
+
+    // Режим скользящего окна событий, см. RuleEventWindow
+    @Value("#{'${rule.event.window:false}'}")
+    private boolean slidingWindow;
+
+    /* Эскалация блокировки до подсети, см. SubnetBlockRule.
+     * rule.subnet.block.limit - сколько адресов подсети должно быть заблокировано, 0 - эскалация выключена
+     */
+    @Value("#{'${rule.subnet.block.limit:0}'}")
+    private int subnetBlockLimit;
+    @Value("#{'${rule.subnet.block.millis:3600000}'}")
+    private long subnetBlockMillis;
+    @Value("#{'${rule.subnet.ipv4.prefix:24}'}")
+    private int subnetIpv4Prefix;
+    @Value("#{'${rule.subnet.ipv6.prefix:64}'}")
+    private int subnetIpv6Prefix;
+
+    private SubnetBlockRule subnetRule;
+
+    // Количество записей каждой карты RuleEventStore, просматриваемых за один запуск очистки
+    @Value("#{'${rule.sweep.batch:1000}'}")
+    private int sweepBatchSize;
 
     @Autowired
     private SnsService snsService;
@@ -38,34 +171,342 @@ public class RuleService {
     @Autowired
     private Mapper dozerBeanMapper;
 
+    /* Постраничное чтение журнала блокировок. Если в контексте нет репозитория -
+     * DynamoDbAccessRulesEventsRepository (страница за запрос) при наличии DynamoDBMapper,
+     * иначе FullPeriodAccessRulesEventsRepository (период целиком, закрытый месяц хранится в памяти)
+     */
+    @Autowired(required = false)
+    private AccessRulesEventsRepository accessRulesEventsRepository;
+    @Autowired(required = false)
+    private DynamoDBMapper dynamoDBMapper;
+    @Autowired(required = false)
+    private CacheManager cacheManager;
+
+    /*
+     * Экземпляр вне контекста Spring для RuleReplay: настройки по умолчанию, без DynamoDB и кластера.
+     * Журнал пишется в sink без потерь
+     */
+    static RuleService standalone(RuleClock clock, AccessRulesEventsWriter.Sink sink, boolean slidingWindow,
+                                  boolean sketchEnabled) {
+        RuleService ruleService = new RuleService();
+        ruleService.ruleClock = clock;
+        ruleService.auditSink = sink;
+        ruleService.slidingWindow = slidingWindow;
+        ruleService.sketchEnabled = sketchEnabled;
+        ruleService.sketchDepth = 4;
+        ruleService.sketchWidth = 16384;
+        ruleService.sketchTopK = 1000;
+        ruleService.sketchPromoteFraction = 0.5;
+        ruleService.auditQueueCapacity = 10000;
+        ruleService.auditFlushSize = 25;
+        ruleService.auditFlushInterval = 1000;
+        ruleService.auditOverflowPolicy = AccessRulesEventsWriter.OverflowPolicy.CALLER_RUNS;
+        ruleService.sweepBatchSize = 1000;
+        ruleService.metricsLatency = false;
+        ruleService.init();
+        return ruleService;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (subnetBlockLimit > 0) {
+            subnetRule = new SubnetBlockRule(subnetBlockLimit, subnetBlockMillis, subnetIpv4Prefix, subnetIpv6Prefix);
+        }
+        if (ruleClock == null && clockResolution > 0) {
+            coarseClock = new CoarseRuleClock(clockResolution);
+            coarseClock.start();
+            ruleClock = coarseClock;
+        } else if (ruleClock == null) {
+            ruleClock = RuleClock.SYSTEM;
+        }
+        metrics = new RuleMetrics(metricsLatency);
+        localStore = new LocalRuleEventStore(slidingWindow, subnetRule, ruleClock);
+        loadSnapshot();
+        if (ruleClusterTransport != null) {
+            if (clusterNodeId == null || clusterNodeId.isEmpty()) {
+                clusterNodeId = UUID.randomUUID().toString();
+            }
+            clusterStore = new ClusterRuleEventStore(clusterNodeId, localStore, ruleClusterTransport);
+            ruleEventStore = clusterStore;
+        } else {
+            ruleEventStore = localStore;
+        }
+        if (sketchEnabled) {
+            ruleEventStore = new SketchRuleEventStore(ruleEventStore, sketchDepth, sketchWidth, sketchTopK,
+                    sketchPromoteFraction, ruleClock);
+        }
+        throttleScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rule-throttle");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (auditSink == null && dynamoDBMapper != null) {
+            auditSink = new DynamoDbAccessRulesEventsSink(dynamoDBMapper, auditBatchAttempts, auditBatchBackoff);
+        }
+        if (auditSink == null) {
+            // без DynamoDBMapper - по одному событию: ошибка записи одного не отменяет запись остальных событий пачки
+            auditSink = batch -> {
+                int failed = 0;
+                for (AccessRulesEvents event : batch) {
+                    try {
+                        dynamodbService.putObjectOrDie(event);
+                    } catch (Exception e) {
+                        failed++;
+                        LOGGER.error("Cant write AccessRulesEvents. ip [{}] type [{}]", event.getIp(), event.getType(), e);
+                    }
+                }
+                return failed;
+            };
+        }
+        auditWriter = new AccessRulesEventsWriter(auditSink, auditQueueCapacity, auditFlushSize, auditFlushInterval,
+                auditOverflowPolicy);
+        auditWriter.start();
+        if (accessRulesEventsRepository == null && dynamoDBMapper != null) {
+            accessRulesEventsRepository = new DynamoDbAccessRulesEventsRepository(dynamoDBMapper);
+        }
+        if (accessRulesEventsRepository == null) {
+            LOGGER.warn("No DynamoDBMapper, AccessRulesEvents log pages are read from the whole period");
+            accessRulesEventsRepository = new FullPeriodAccessRulesEventsRepository(dynamodbService,
+                    () -> periodFormatter.print(ruleClock.currentTimeMillis()));
+        }
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        throttleScheduler.shutdownNow();
+        for (CompletableFuture<Void> delay : pendingDelays) {
+            delay.completeExceptionally(new CancellationException("RuleService is stopped"));
+        }
+        pendingDelays.clear();
+        writeSnapshot();
+        auditWriter.stop();
+        if (coarseClock != null) {
+            coarseClock.stop();
+        }
+    }
+
+    private void loadSnapshot() {
+        if (snapshotFile == null || snapshotFile.isEmpty()) {
+            return;
+        }
+        Path file = Paths.get(snapshotFile);
+        if (!Files.exists(file)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            int loaded = localStore.loadSnapshot(file);
+            LOGGER.info("Rule snapshot loaded. file [{}] entries [{}] millis [{}]",
+                    file, loaded, System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            LOGGER.error("Cant load rule snapshot. file [{}]", file, e);
+        }
+    }
+
+    /*
+     * Периодическая запись снимка состояния правил, последний снимок пишется при остановке
+     */
+    @Scheduled(fixedDelayString = "${rule.snapshot.delay:60000}")
+    public void writeSnapshot() {
+        if (snapshotFile == null || snapshotFile.isEmpty()) {
+            return;
+        }
+        try {
+            localStore.writeSnapshot(Paths.get(snapshotFile));
+        } catch (IOException e) {
+            LOGGER.error("Cant write rule snapshot. file [{}]", snapshotFile, e);
+        }
+    }
+
+    public AccessRulesEventsWriter getAuditWriter() {
+        return auditWriter;
+    }
+
+    /*
+     * Строковые варианты принимают IP как пришел от вызывающего: строка, которая не является адресом,
+     * не блокируется и не учитывается, в журнал пишется исходная строка
+     */
     public RuleEventList getRuleEventsData(String ruleName, String ip) {
-        return ruleEventStore.getRuleEventsData(ruleName, ip);
+        IpAddress address = parseOrWarn(ip);
+        return address == null ? null : ruleEventStore.getRuleEventsData(ruleName, address);
     }
 
     public void resetEvent(String eventName, String ip) {
-        ruleEventStore.eventReset(eventName, ip);
+        IpAddress address = parseOrWarn(ip);
+        if (address != null) {
+            ruleEventStore.eventReset(eventName, address);
+        }
     }
 
     public void onEvent(String ip, OlekstraRule rule)
             throws InterruptedException, ItemSizeLimitExceededException, NotRegisteredRuleException {
+        IpAddress address = parseOrWarn(ip);
+        if (address != null) {
+            onEvent(address, ip, rule);
+        }
+    }
+
+    /*
+     * Вариант для вызывающего, который уже разобрал IP запроса (например для isBlocked)
+     */
+    public void onEvent(IpAddress ip, OlekstraRule rule)
+            throws InterruptedException, ItemSizeLimitExceededException, NotRegisteredRuleException {
+        onEvent(ip, null, rule);
+    }
+
+    private void onEvent(IpAddress ip, String logIp, OlekstraRule rule)
+            throws InterruptedException, ItemSizeLimitExceededException, NotRegisteredRuleException {
+
+        long start = metrics.start();
+        long sleep = applyRule(ip, logIp, rule);
+        metrics.onEventFinished(start);
+        if (sleep > 0) {
+            currentTreadSleep(sleep);
+        }
+    }
+
+    /**
+     * Неблокирующий вариант {@link #onEvent(String, OlekstraRule)}.
+     * Вместо заморозки потока возвращает future, которое завершается по истечении задержки правила.
+     * Контроллер может вернуть его (или производное через thenApply) как асинхронный ответ Spring MVC,
+     * тогда поток контейнера освобождается на время задержки.
+     */
+    public CompletableFuture<Void> onEventAsync(String ip, OlekstraRule rule)
+            throws ItemSizeLimitExceededException, NotRegisteredRuleException {
+        IpAddress address = parseOrWarn(ip);
+        if (address == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return onEventAsync(address, ip, rule);
+    }
+
+    public CompletableFuture<Void> onEventAsync(IpAddress ip, OlekstraRule rule)
+            throws ItemSizeLimitExceededException, NotRegisteredRuleException {
+        return onEventAsync(ip, null, rule);
+    }
+
+    private CompletableFuture<Void> onEventAsync(IpAddress ip, String logIp, OlekstraRule rule)
+            throws ItemSizeLimitExceededException, NotRegisteredRuleException {
+
+        long start = metrics.start();
+        long sleep = applyRule(ip, logIp, rule);
+        metrics.onEventFinished(start);
+        return delay(sleep);
+    }
+
+    /*
+     * Регистрирует событие правила, блокирует IP при превышении лимита.
+     * Возвращает задержку ответа в миллисекундах, 0 - задерживать не нужно.
+     * logIp - IP в виде, в котором его передал вызывающий, null - писать в журнал разобранный адрес
+     */
+    private long applyRule(IpAddress ip, String logIp, OlekstraRule rule)
+            throws ItemSizeLimitExceededException, NotRegisteredRuleException {
 
         int eventSize = ruleEventStore.eventAdd(ip, rule);
+        metrics.event(rule.getName());
 
         long sleep = 0;
         if (rule.getLimitToSleep() != null && eventSize > rule.getLimitToSleep()) {
-            writeLog(AccessRulesEvents.SLEEP_TYPE, ip, rule.getName(), null, null);
+            metrics.sleep();
+            writeLog(AccessRulesEvents.SLEEP_TYPE, logIp(ip, logIp), rule.getName(), null, null);
             sleep = rule.getSleepMillis();
         }
 
         if (rule.getLimitToBlock() != null && eventSize > rule.getLimitToBlock()) {
-            blockIp(ip, rule.getName(), rule.getBlockMillis());
+            blockIp(ip, logIp, rule.getName(), rule.getBlockMillis(), rule.getName());
         }
 
-        if (sleep > 0 && AWSAccess.IPBLOCK) {
+        return AWSAccess.IPBLOCK ? sleep : 0;
+    }
+
+    /**
+     * Регистрация всех сработавших на запросе правил за одно обращение к хранилищу.
+     * Применяется только самое сильное действие: если хотя бы одно правило превысило limitToBlock -
+     * блокировка на наибольший срок из таких правил без задержки, иначе наибольшая задержка.
+     * В журнал пишется одна запись (BLOCK или SLEEP) с именами всех сработавших правил,
+     * в том числе для одного правила (в отличие от onEvent, который и задерживает, и блокирует).
+     */
+    public void onEvents(IpAddress ip, List<OlekstraRule> rules)
+            throws InterruptedException, ItemSizeLimitExceededException, NotRegisteredRuleException {
+
+        long start = metrics.start();
+        long sleep = applyRules(ip, rules);
+        metrics.onEventFinished(start);
+        if (sleep > 0) {
             currentTreadSleep(sleep);
         }
     }
 
+    public CompletableFuture<Void> onEventsAsync(IpAddress ip, List<OlekstraRule> rules)
+            throws ItemSizeLimitExceededException, NotRegisteredRuleException {
+
+        long start = metrics.start();
+        long sleep = applyRules(ip, rules);
+        metrics.onEventFinished(start);
+        return delay(sleep);
+    }
+
+    // Без задержки потока, вызывается и из RuleReplay
+    long applyRules(IpAddress ip, List<OlekstraRule> rules)
+            throws ItemSizeLimitExceededException, NotRegisteredRuleException {
+
+        if (rules.isEmpty()) {
+            return 0;
+        }
+
+        int[] eventSizes = ruleEventStore.eventAddAll(ip, rules);
+
+        OlekstraRule sleepRule = null;
+        OlekstraRule blockRule = null;
+        StringBuilder triggered = null;
+        for (int i = 0; i < eventSizes.length; i++) {
+            OlekstraRule rule = rules.get(i);
+            metrics.event(rule.getName());
+            boolean sleep = rule.getLimitToSleep() != null && eventSizes[i] > rule.getLimitToSleep();
+            boolean block = rule.getLimitToBlock() != null && eventSizes[i] > rule.getLimitToBlock();
+            if (sleep && (sleepRule == null || rule.getSleepMillis() > sleepRule.getSleepMillis())) {
+                sleepRule = rule;
+            }
+            if (block && (blockRule == null || rule.getBlockMillis() > blockRule.getBlockMillis())) {
+                blockRule = rule;
+            }
+            if (sleep || block) {
+                triggered = triggered == null ? new StringBuilder(rule.getName())
+                        : triggered.append(',').append(rule.getName());
+            }
+        }
+
+        if (blockRule != null) {
+            blockIp(ip, null, blockRule.getName(), blockRule.getBlockMillis(), triggered.toString());
+            return 0;
+        }
+        if (sleepRule != null) {
+            metrics.sleep();
+            writeLog(AccessRulesEvents.SLEEP_TYPE, ip.toString(), triggered.toString(), null, null);
+            return AWSAccess.IPBLOCK ? sleepRule.getSleepMillis() : 0;
+        }
+        return 0;
+    }
+
+    private CompletableFuture<Void> delay(long sleep) {
+        if (sleep <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> delay = new CompletableFuture<>();
+        pendingDelays.add(delay);
+        try {
+            throttleScheduler.schedule(() -> {
+                pendingDelays.remove(delay);
+                delay.complete(null);
+            }, sleep, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // сервис остановлен
+            pendingDelays.remove(delay);
+            delay.completeExceptionally(e);
+        }
+        return delay;
+    }
+
     private void currentTreadSleep(long sleep) throws InterruptedException {
         synchronized (Thread.currentThread()) {
             Thread.currentThread().wait(sleep);
@@ -73,50 +514,211 @@ public class RuleService {
     }
 
     public void blockIp(String ip, String ruleName, long millisToExpire) throws ItemSizeLimitExceededException {
-        if (isBlocked(ip)) {
-            return;
+        IpAddress address = parseOrWarn(ip);
+        if (address != null) {
+            blockIp(address, ip, ruleName, millisToExpire, ruleName);
         }
+    }
 
-        DateTime timeToExpire = (new DateTime()).plusMillis((int) millisToExpire);
+    /*
+     * auditEvent - имя события в журнале, для нескольких сработавших правил их имена через запятую
+     */
+    private void blockIp(IpAddress ip, String logIp, String ruleName, long millisToExpire, String auditEvent)
+            throws ItemSizeLimitExceededException {
+        if (isBlocked(ip, logIp)) {
+            return;
+        }
 
         BlockItem blockItem = new BlockItem();
-        blockItem.setExpireTime(timeToExpire);
+        blockItem.setExpireTime(new DateTime(ruleClock.currentTimeMillis() + millisToExpire));
         blockItem.setRuleName(ruleName);
-        ruleEventStore.block(ip, blockItem);
+        int blockedInSubnet = ruleEventStore.block(ip, blockItem);
+        metrics.block();
         String eventLog = ruleEventStore.eventToString(ruleName, ip);
 
         int minitesToExpire = (int) (millisToExpire / 1000) / 60;
-        writeLog(AccessRulesEvents.BLOCK_TYPE, ip, ruleName, minitesToExpire, eventLog);
+        writeLog(AccessRulesEvents.BLOCK_TYPE, logIp(ip, logIp), auditEvent, minitesToExpire, eventLog);
+
+        if (subnetRule != null && blockedInSubnet > subnetRule.getLimitToBlock()) {
+            blockSubnet(subnetRule.subnetOf(ip), subnetRule.getName(), subnetRule.getBlockMillis(),
+                    "blocked ip in subnet: " + blockedInSubnet);
+        }
+    }
+
+    /**
+     * Блокировка подсети
+     *
+     * @param prefix подсеть вида 10.0.0.0/24 или 2001:db8::/32
+     */
+    public void blockSubnet(String prefix, String ruleName, long millisToExpire) throws ItemSizeLimitExceededException {
+        blockSubnet(IpPrefix.parse(prefix), ruleName, millisToExpire, null);
+    }
+
+    private void blockSubnet(IpPrefix prefix, String ruleName, long millisToExpire, String log)
+            throws ItemSizeLimitExceededException {
+        BlockItem blockItem = new BlockItem();
+        blockItem.setExpireTime(new DateTime(ruleClock.currentTimeMillis() + millisToExpire));
+        blockItem.setRuleName(ruleName);
+        ruleEventStore.blockPrefix(prefix, blockItem);
+        metrics.block();
+
+        int minitesToExpire = (int) (millisToExpire / 1000) / 60;
+        writeLog(AccessRulesEvents.BLOCK_TYPE, prefix.toString(), ruleName, minitesToExpire, log);
+    }
+
+    private static IpAddress parseOrWarn(String ip) {
+        IpAddress address = IpAddress.tryParse(ip);
+        if (address == null) {
+            LOGGER.warn("Not an IP address, skipped [{}]", ip);
+        }
+        return address;
+    }
+
+    private static String logIp(IpAddress ip, String logIp) {
+        return logIp != null ? logIp : ip.toString();
     }
 
     private void writeLog(String type, String ip, String event, Integer mins, String log) throws ItemSizeLimitExceededException {
         AccessRulesEvents blockLog = new AccessRulesEvents();
-        blockLog.setPeriod(AccessRulesEvents.getHashkey(new DateTime()));
+        // DateTime создается только для журнала, движок правил работает с миллисекундами
+        DateTime now = new DateTime(nextAuditMillis());
+        blockLog.setPeriod(AccessRulesEvents.getHashkey(now));
         blockLog.setIp(ip);
         blockLog.setEvent(event);
-        blockLog.setRangeKey(new DateTime());
+        blockLog.setRangeKey(now);
         blockLog.setExpireAfterMin(mins);
         blockLog.setLog(log);
         blockLog.setType(type);
-        dynamodbService.putObjectOrDie(blockLog);
+        auditWriter.submit(blockLog);
+    }
+
+    /*
+     * Время записи журнала: полная точность (грубые часы дают один ключ на весь тик),
+     * строго возрастает в пределах процесса
+     */
+    private long nextAuditMillis() {
+        long now = coarseClock != null ? System.currentTimeMillis() : ruleClock.currentTimeMillis();
+        return lastAuditMillis.updateAndGet(last -> Math.max(now, last + 1));
     }
 
     public boolean isBlocked(String ip) throws ItemSizeLimitExceededException {
+        IpAddress address = parseOrWarn(ip);
+        return address != null && isBlocked(address, ip);
+    }
+
+    public boolean isBlocked(IpAddress ip) throws ItemSizeLimitExceededException {
+        return isBlocked(ip, null);
+    }
+
+    private boolean isBlocked(IpAddress ip, String logIp) throws ItemSizeLimitExceededException {
+        long start = metrics.start();
         BlockedIpState state = ruleEventStore.tryReleaseBlock(ip);
-        if (state == BlockedIpState.RELEASED) {
-            writeLog(AccessRulesEvents.UNBLOCK_TYPE, ip, null, null, null);
-            return false;
-        } else if (state == BlockedIpState.UNBLOCKED) {
-            return false;
+        boolean blocked;
+        if (state == BlockedIpState.BLOCKED) {
+            blocked = true;
+        } else {
+            if (state == BlockedIpState.RELEASED) {
+                metrics.unblock();
+                writeLog(AccessRulesEvents.UNBLOCK_TYPE, logIp(ip, logIp), null, null, null);
+            }
+            blocked = ruleEventStore.isPrefixBlocked(ip);
+        }
+        metrics.isBlockedFinished(start);
+        return blocked;
+    }
+
+    /*
+     * Фоновая очистка RuleEventStore, снимает истекшие блокировки без обращения заблокированного IP
+     */
+    @Scheduled(fixedDelayString = "${rule.sweep.delay:1000}")
+    public void sweepExpired() throws ItemSizeLimitExceededException {
+        for (IpAddress ip : ruleEventStore.sweep(sweepBatchSize)) {
+            metrics.unblock();
+            writeLog(AccessRulesEvents.UNBLOCK_TYPE, ip.toString(), null, null, null);
         }
-        return true;
+        for (IpPrefix prefix : ruleEventStore.sweepPrefixes()) {
+            metrics.unblock();
+            writeLog(AccessRulesEvents.UNBLOCK_TYPE, prefix.toString(), null, null, null);
+        }
+    }
+
+    /*
+     * Отправка накопленных счетчиков событий другим узлам кластера
+     */
+    @Scheduled(fixedDelayString = "${rule.cluster.sync.delay:500}")
+    public void synchronizeCluster() {
+        if (clusterStore != null) {
+            clusterStore.synchronize();
+        }
+    }
+
+    public int getBlockedIpCount() {
+        return ruleEventStore.getBlockedIpCount();
+    }
+
+    public int getRuleEventsCount() {
+        return ruleEventStore.getRuleEventsCount();
+    }
+
+    public int getBlockedPrefixCount() {
+        return ruleEventStore.getBlockedPrefixCount();
+    }
+
+    /**
+     * Снимок счетчиков и процентилей задержек (в наносекундах) с момента запуска
+     */
+    public RuleMetrics.Snapshot getMetrics() {
+        return metrics.snapshot(ruleEventStore, localStore.getLockWait());
+    }
+
+    /**
+     * Страница журнала блокировок за период, записи по возрастанию времени.
+     * Страницы закрытых месяцев не меняются и кэшируются, текущий месяц читается всегда.
+     *
+     * @param period период yyyyMM, null - текущий месяц
+     * @param cursor {@link AccessRulesEventsPage#getNextCursor()} предыдущей страницы, null - первая страница
+     */
+    public AccessRulesEventsPage<AccessRuleEvent> getBlockIpLog(String period, String cursor, int pageSize)
+            throws IOException {
+        String currentPeriod = periodFormatter.print(ruleClock.currentTimeMillis());
+        String key = period == null ? currentPeriod : period;
+
+        Cache cache = cacheManager != null && key.compareTo(currentPeriod) < 0
+                ? cacheManager.getCache(BLOCK_LOG_CACHE) : null;
+        String cacheKey = key + ':' + cursor + ':' + pageSize;
+        @SuppressWarnings("unchecked")
+        AccessRulesEventsPage<AccessRulesEvents> page = cache != null
+                ? cache.get(cacheKey, AccessRulesEventsPage.class) : null;
+        if (page == null) {
+            page = accessRulesEventsRepository.query(key, cursor, pageSize);
+            if (cache != null) {
+                cache.put(cacheKey, page);
+            }
+        }
+        return page.map(RuleService::toAccessRuleEvent);
+    }
+
+    private static AccessRuleEvent toAccessRuleEvent(AccessRulesEvents event) {
+        AccessRuleEvent dto = new AccessRuleEvent();
+        dto.setPeriod(event.getPeriod());
+        dto.setIp(event.getIp());
+        dto.setEvent(event.getEvent());
+        dto.setRangeKey(event.getRangeKey());
+        dto.setExpireAfterMin(event.getExpireAfterMin());
+        dto.setLog(event.getLog());
+        dto.setType(event.getType());
+        return dto;
     }
 
+    /**
+     * @deprecated журнал месяца загружается целиком, используйте {@link #getBlockIpLog(String, String, int)}
+     */
+    @Deprecated
     public List<ru.olekstra.domain.dto.AccessRuleEvent> getBlockIpLog(String period)
             throws IllegalAccessException, InstantiationException, IOException {
         String key = period;
         if (key == null) {
-            key = periodFormatter.print(new DateTime());
+            key = periodFormatter.print(ruleClock.currentTimeMillis());
         }
         List<ru.olekstra.domain.AccessRulesEvents> list = dynamodbService
                 .queryObjects(ru.olekstra.domain.AccessRulesEvents.class, key);
@@ -0,0 +1,241 @@
+package ru.olekstra.common.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/*
+ * Режим ограниченной памяти для распределенного сканирования с миллионов адресов.
+ * События правила сначала считаются в CountMinSketch (фиксированный объем на правило),
+ * IP, у которых оценка дошла до порога продвижения, учитываются в SpaceSavingTopK.
+ * Точный учет в хранилище-делегате заводится только для IP, чья гарантированная нижняя оценка
+ * Space-Saving дошла до порога, т.е. для настоящих heavy hitters.
+ *
+ * Порог продвижения - доля promoteFraction от меньшего лимита правила (limitToSleep / limitToBlock).
+ * Пока IP не продвинут, возвращаемое количество событий не больше этого лимита, ошибка скетча
+ * не приводит к SLEEP/BLOCK. После продвижения события считаются точно с нуля, поэтому
+ * реакция на heavy hitter запаздывает не больше чем на порог продвижения событий.
+ * Ошибки: Count-Min переоценивает не больше e/width * N с вероятностью 1 - e^-depth
+ * (N - события правила за 1..2 eventLifeMillis), Space-Saving отслеживает все IP с частотой больше N / topK.
+ */
+public class SketchRuleEventStore implements RuleEventStore {
+
+    private static final class RuleSketch {
+        private final CountMinSketch sketch;
+        private final SpaceSavingTopK topK;
+        private final long eventLifeMillis;
+        private volatile long topKStart;
+
+        private RuleSketch(CountMinSketch sketch, SpaceSavingTopK topK, long eventLifeMillis, long now) {
+            this.sketch = sketch;
+            this.topK = topK;
+            this.eventLifeMillis = eventLifeMillis;
+            this.topKStart = now;
+        }
+
+        // Space-Saving не умеет забывать события, поэтому сбрасывается раз в два времени жизни события
+        private long offer(IpAddress ip, long now) {
+            if (now - topKStart > 2 * eventLifeMillis) {
+                topKStart = now;
+                topK.clear();
+            }
+            return topK.offer(0, ip.getHigh(), ip.getLow());
+        }
+    }
+
+    private final RuleEventStore delegate;
+    private final int depth;
+    private final int width;
+    private final int topK;
+    private final double promoteFraction;
+    private final RuleClock clock;
+
+    private final ConcurrentMap<String, RuleSketch> sketches = new ConcurrentHashMap<>();
+
+    /**
+     * @param width           ширина строки Count-Min, степень двойки
+     * @param topK            количество IP, отслеживаемых Space-Saving на правило
+     * @param promoteFraction доля меньшего лимита правила, после которой IP переходит на точный учет
+     */
+    public SketchRuleEventStore(RuleEventStore delegate, int depth, int width, int topK, double promoteFraction) {
+        this(delegate, depth, width, topK, promoteFraction, RuleClock.SYSTEM);
+    }
+
+    public SketchRuleEventStore(RuleEventStore delegate, int depth, int width, int topK, double promoteFraction,
+                                RuleClock clock) {
+        this.delegate = delegate;
+        this.clock = clock;
+        this.depth = depth;
+        this.width = width;
+        this.topK = topK;
+        this.promoteFraction = promoteFraction;
+    }
+
+    private RuleSketch sketchOf(OlekstraRule rule, long now) {
+        RuleSketch ruleSketch = sketches.get(rule.getName());
+        if (ruleSketch == null) {
+            ruleSketch = sketches.computeIfAbsent(rule.getName(), name -> new RuleSketch(
+                    new CountMinSketch(depth, width, rule.getEventLifeMillis(), now), new SpaceSavingTopK(topK),
+                    rule.getEventLifeMillis(), now));
+        }
+        return ruleSketch;
+    }
+
+    private static int lowestLimit(OlekstraRule rule) {
+        int limit = Integer.MAX_VALUE;
+        if (rule.getLimitToSleep() != null) {
+            limit = Math.min(limit, rule.getLimitToSleep());
+        }
+        if (rule.getLimitToBlock() != null) {
+            limit = Math.min(limit, rule.getLimitToBlock());
+        }
+        return limit;
+    }
+
+    @Override
+    public int eventAdd(IpAddress ip, OlekstraRule rule) {
+        if (delegate.hasEvents(rule.getName(), ip)) {
+            return delegate.eventAdd(ip, rule);
+        }
+        int estimate = sketchEventAdd(ip, rule);
+        return estimate < 0 ? delegate.eventAdd(ip, rule) : estimate;
+    }
+
+    /*
+     * Правила с точным учетом передаются делегату одним вызовом eventAddAll
+     */
+    @Override
+    public int[] eventAddAll(IpAddress ip, List<OlekstraRule> rules) {
+        int[] eventSizes = new int[rules.size()];
+        List<OlekstraRule> exactRules = null;
+        for (int i = 0; i < eventSizes.length; i++) {
+            OlekstraRule rule = rules.get(i);
+            eventSizes[i] = delegate.hasEvents(rule.getName(), ip) ? -1 : sketchEventAdd(ip, rule);
+            if (eventSizes[i] < 0) {
+                if (exactRules == null) {
+                    exactRules = new ArrayList<>(eventSizes.length);
+                }
+                exactRules.add(rule);
+            }
+        }
+        if (exactRules != null) {
+            int[] exactSizes = delegate.eventAddAll(ip, exactRules);
+            for (int i = 0, exact = 0; i < eventSizes.length; i++) {
+                if (eventSizes[i] < 0) {
+                    eventSizes[i] = exactSizes[exact++];
+                }
+            }
+        }
+        return eventSizes;
+    }
+
+    /*
+     * Учет события в скетче. Возвращает оценку количества событий, не больше меньшего лимита правила,
+     * или -1, если IP продвинут и событие нужно добавить в точный учет
+     */
+    private int sketchEventAdd(IpAddress ip, OlekstraRule rule) {
+        int lowestLimit = lowestLimit(rule);
+        if (lowestLimit == Integer.MAX_VALUE) {
+            // у правила нет лимитов, учет не нужен
+            return 0;
+        }
+
+        long now = clock.currentTimeMillis();
+        RuleSketch ruleSketch = sketchOf(rule, now);
+        int threshold = Math.max(1, (int) (lowestLimit * promoteFraction));
+        int estimate = ruleSketch.sketch.add(0, ip.getHigh(), ip.getLow(), now);
+        // оценка за вычетом фонового шума скетча, иначе при атаке с миллионов адресов порог проходят все
+        if (estimate - ruleSketch.sketch.noise() >= threshold && ruleSketch.offer(ip, now) >= threshold) {
+            return -1;
+        }
+        return Math.min(estimate, lowestLimit);
+    }
+
+    /**
+     * IP с наибольшим гарантированным количеством событий правила по Space-Saving, по убыванию
+     */
+    public List<IpAddress> getHeavyHitters(String ruleName) {
+        RuleSketch ruleSketch = sketches.get(ruleName);
+        List<IpAddress> result = new ArrayList<>();
+        if (ruleSketch == null) {
+            return result;
+        }
+        SpaceSavingTopK.Counter[] counters = ruleSketch.topK.snapshot();
+        Arrays.sort(counters, Comparator.comparingLong(
+                (SpaceSavingTopK.Counter counter) -> counter.getCount() - counter.getError()).reversed());
+        for (SpaceSavingTopK.Counter counter : counters) {
+            result.add(counter.getIp());
+        }
+        return result;
+    }
+
+    @Override
+    public boolean hasEvents(String ruleName, IpAddress ip) {
+        return delegate.hasEvents(ruleName, ip);
+    }
+
+    @Override
+    public int block(IpAddress ip, BlockItem blockItem) {
+        return delegate.block(ip, blockItem);
+    }
+
+    @Override
+    public BlockedIpState tryReleaseBlock(IpAddress ip) {
+        return delegate.tryReleaseBlock(ip);
+    }
+
+    @Override
+    public void blockPrefix(IpPrefix prefix, BlockItem blockItem) {
+        delegate.blockPrefix(prefix, blockItem);
+    }
+
+    @Override
+    public boolean isPrefixBlocked(IpAddress ip) {
+        return delegate.isPrefixBlocked(ip);
+    }
+
+    @Override
+    public void eventReset(String ruleName, IpAddress ip) {
+        delegate.eventReset(ruleName, ip);
+    }
+
+    @Override
+    public RuleEventList getRuleEventsData(String ruleName, IpAddress ip) {
+        return delegate.getRuleEventsData(ruleName, ip);
+    }
+
+    @Override
+    public String eventToString(String ruleName, IpAddress ip) {
+        return delegate.eventToString(ruleName, ip);
+    }
+
+    @Override
+    public List<IpAddress> sweep(int batchSize) {
+        return delegate.sweep(batchSize);
+    }
+
+    @Override
+    public List<IpPrefix> sweepPrefixes() {
+        return delegate.sweepPrefixes();
+    }
+
+    @Override
+    public int getBlockedIpCount() {
+        return delegate.getBlockedIpCount();
+    }
+
+    @Override
+    public int getBlockedPrefixCount() {
+        return delegate.getBlockedPrefixCount();
+    }
+
+    @Override
+    public int getRuleEventsCount() {
+        return delegate.getRuleEventsCount();
+    }
+
+}
\ No newline at end of file
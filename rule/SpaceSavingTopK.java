@@ -0,0 +1,146 @@
+package ru.olekstra.common.rules;
+
+
+/*
+ * Алгоритм Space-Saving: K отслеживаемых ключей (id правила + IP) с самыми большими счетчиками.
+ * Новый ключ вытесняет ключ с минимальным счетчиком и наследует его значение как погрешность,
+ * поэтому count - error не больше истинного количества событий ключа, а любой ключ
+ * с частотой больше N / K гарантированно отслеживается.
+ * Счетчики в min-куче, объекты создаются один раз, операция - O(log K).
+ */
+class SpaceSavingTopK {
+
+    static final class Counter {
+        private int rule;
+        private long high;
+        private long low;
+        private long count;
+        private long error;
+        private int heapIndex;
+
+        int getRule() {
+            return rule;
+        }
+
+        IpAddress getIp() {
+            return new IpAddress(high, low);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getError() {
+            return error;
+        }
+    }
+
+    private final Counter[] heap;
+    private final RuleIpMap<Counter> index = new RuleIpMap<>();
+    private int size;
+
+    SpaceSavingTopK(int capacity) {
+        heap = new Counter[capacity];
+        for (int i = 0; i < capacity; i++) {
+            heap[i] = new Counter();
+            heap[i].heapIndex = i;
+        }
+    }
+
+    /**
+     * Учитывает событие ключа
+     *
+     * @return гарантированная нижняя оценка количества событий ключа (count - error)
+     */
+    synchronized long offer(int rule, long high, long low) {
+        Counter counter = index.get(rule, high, low);
+        boolean leaf = false;
+        if (counter == null) {
+            if (size < heap.length) {
+                leaf = true;
+                counter = heap[size++];
+                counter.count = 0;
+                counter.error = 0;
+            } else {
+                counter = heap[0];
+                index.remove(counter.rule, counter.high, counter.low);
+                counter.error = counter.count;
+            }
+            counter.rule = rule;
+            counter.high = high;
+            counter.low = low;
+            index.put(rule, high, low, counter);
+        }
+        counter.count++;
+        if (leaf) {
+            // новый лист со счетчиком 1 может быть меньше родителя
+            siftUp(counter.heapIndex);
+        } else {
+            siftDown(counter.heapIndex);
+        }
+        return counter.count - counter.error;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < size; i++) {
+            index.remove(heap[i].rule, heap[i].high, heap[i].low);
+        }
+        size = 0;
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (heap[parent].count <= heap[position].count) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < size && heap[left].count < heap[smallest].count) {
+                smallest = left;
+            }
+            if (right < size && heap[right].count < heap[smallest].count) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        Counter counter = heap[i];
+        heap[i] = heap[j];
+        heap[j] = counter;
+        heap[i].heapIndex = i;
+        heap[j].heapIndex = j;
+    }
+
+    /*
+     * Копия отслеживаемых счетчиков, для мониторинга
+     */
+    synchronized Counter[] snapshot() {
+        Counter[] result = new Counter[size];
+        for (int i = 0; i < size; i++) {
+            Counter counter = new Counter();
+            counter.rule = heap[i].rule;
+            counter.high = heap[i].high;
+            counter.low = heap[i].low;
+            counter.count = heap[i].count;
+            counter.error = heap[i].error;
+            result[i] = counter;
+        }
+        return result;
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,49 @@
+package ru.olekstra.common.rules;
+
+
+/*
+ * Правило эскалации блокировки до подсети.
+ * Если в подсети одновременно заблокировано больше limitToBlock адресов, блокируется вся подсеть на blockMillis.
+ * Размер подсети задается длиной префикса отдельно для IPv4 и IPv6.
+ */
+public class SubnetBlockRule {
+
+    public static final String NAME = "SubnetBlockRule";
+
+    private final int limitToBlock;
+    private final long blockMillis;
+    private final int ipv4PrefixLength;
+    private final int ipv6PrefixLength;
+
+    public SubnetBlockRule(int limitToBlock, long blockMillis, int ipv4PrefixLength, int ipv6PrefixLength) {
+        this.limitToBlock = limitToBlock;
+        this.blockMillis = blockMillis;
+        this.ipv4PrefixLength = ipv4PrefixLength;
+        this.ipv6PrefixLength = ipv6PrefixLength;
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public int getLimitToBlock() {
+        return limitToBlock;
+    }
+
+    public long getBlockMillis() {
+        return blockMillis;
+    }
+
+    public int getIpv4PrefixLength() {
+        return ipv4PrefixLength;
+    }
+
+    public int getIpv6PrefixLength() {
+        return ipv6PrefixLength;
+    }
+
+    public IpPrefix subnetOf(IpAddress ip) {
+        return IpPrefix.of(ip, ipv4PrefixLength, ipv6PrefixLength);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,31 @@
+package ru.olekstra.common.rules;
+
+
+/*
+ * Время, которое двигается вручную: по отметкам времени воспроизводимого журнала или шагами теста
+ */
+public class VirtualRuleClock implements RuleClock {
+
+    private volatile long millis;
+
+    public VirtualRuleClock(long millis) {
+        this.millis = millis;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return millis;
+    }
+
+    // Время не идет назад, более ранняя отметка игнорируется
+    public void set(long millis) {
+        if (millis > this.millis) {
+            this.millis = millis;
+        }
+    }
+
+    public void advance(long millis) {
+        this.millis += millis;
+    }
+
+}